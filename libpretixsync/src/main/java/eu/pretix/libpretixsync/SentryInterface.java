@@ -2,6 +2,8 @@ package eu.pretix.libpretixsync;
 
 import okhttp3.OkHttpClient;
 
+import java.util.Map;
+
 public interface SentryInterface {
     public void addHttpBreadcrumb(String url, String method, int statusCode);
 
@@ -10,4 +12,11 @@ public interface SentryInterface {
     public void captureException(Throwable t);
 
     public void captureException(Throwable t, String message);
+
+    /**
+     * Reports the duration of an operation and its parts, e.g. as a performance transaction with
+     * spans. Implementations that do not support this can ignore it.
+     */
+    default void recordTransaction(String name, long durationNanos, Map<String, Long> spanDurationsNanos) {
+    }
 }
@@ -0,0 +1,102 @@
+package eu.pretix.libpretixsync.api
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps a connection to the server open while a scanning session is active, so the first online
+ * check after a pause does not have to wait for DNS, TCP and TLS, or run into a socket that the
+ * server closed in the meantime.
+ *
+ * While started, [PretixApi.ping] is called every [intervalMillis], which is well below the idle
+ * timeouts of common web servers and of OkHttp's connection pool. OkHttp uses HTTP/2 on its own if
+ * the server supports it, in which case all requests share the one connection kept open here.
+ * The app should call [onNetworkChanged] when the device switches networks, since connections of
+ * the previous network can't be used anymore.
+ *
+ * The API client must be the one used for checks, e.g. the one of
+ * [eu.pretix.libpretixsync.check.OnlineCheckProvider.createKeepWarm], as connections are pooled
+ * per client.
+ */
+class ConnectionKeepWarm(private val api: PretixApi, private val intervalMillis: Long = DEFAULT_INTERVAL_MS) {
+    /**
+     * [connectNanos] and [requestNanos] are summed up over all successful pings, [newConnections]
+     * is the number of pings that had to establish a connection first.
+     */
+    class Statistics(
+        val pings: Long,
+        val failures: Long,
+        val newConnections: Long,
+        val connectNanos: Long,
+        val requestNanos: Long,
+        val protocol: String?,
+    )
+
+    private var task: ScheduledFuture<*>? = null
+    private var pings = 0L
+    private var failures = 0L
+    private var newConnections = 0L
+    private var connectNanos = 0L
+    private var requestNanos = 0L
+    private var protocol: String? = null
+
+    @Synchronized
+    fun start() {
+        if (task != null) {
+            return
+        }
+        task = scheduler.scheduleWithFixedDelay({ ping() }, 0, intervalMillis, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    fun stop() {
+        task?.cancel(false)
+        task = null
+    }
+
+    /**
+     * Drops all pooled connections and, if started, establishes a new one right away.
+     */
+    fun onNetworkChanged() {
+        api.evictConnections()
+        synchronized(this) {
+            if (task != null) {
+                scheduler.execute { ping() }
+            }
+        }
+    }
+
+    @Synchronized
+    fun statistics(): Statistics = Statistics(pings, failures, newConnections, connectNanos, requestNanos, protocol)
+
+    private fun ping() {
+        val timings = try {
+            api.ping(intervalMillis)
+        } catch (e: ApiException) {
+            synchronized(this) {
+                failures++
+            }
+            return
+        }
+        synchronized(this) {
+            pings++
+            if (timings.newConnection) {
+                newConnections++
+            }
+            connectNanos += timings.connectNanos
+            requestNanos += timings.requestNanos
+            protocol = timings.protocol?.toString()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_INTERVAL_MS = 30_000L
+
+        private val scheduler = Executors.newSingleThreadScheduledExecutor { r ->
+            val t = Thread(r, "ConnectionKeepWarm")
+            t.isDaemon = true
+            t
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package eu.pretix.libpretixsync.api
+
+import okhttp3.OkHttpClient
+import java.util.WeakHashMap
+
+/**
+ * Process-wide registry of HTTP clients, so all [PretixApi] instances talking to the same server
+ * share one connection pool and one dispatcher, no matter how often [PretixApi.fromConfig] is
+ * called. Clients are keyed by the factory that builds them, the base URL and whether SSL
+ * verification is skipped. To share clients, callers need to pass the same factory instance every
+ * time, as [PretixApi.fromConfig] does if no factory is given. A factory may also override
+ * `equals` and `hashCode` if all its instances build equivalent clients.
+ *
+ * Factories are held weakly, so the clients of a factory that is no longer used are dropped, unless
+ * they reference the factory themselves. [shutdown] releases all threads and connections, e.g. when
+ * the app is closed. A client that is needed again afterwards is simply built anew.
+ */
+object HttpClientRegistry {
+    private data class Key(val baseUrl: String, val ignoreSsl: Boolean)
+
+    private val clients = WeakHashMap<HttpClientFactory, HashMap<Key, OkHttpClient>>()
+
+    /**
+     * Incremented by every [shutdown], so holders of a client can tell that it has been released
+     * without taking the registry lock on every request.
+     */
+    @Volatile
+    @JvmStatic
+    var generation = 0L
+        private set
+
+    @JvmStatic
+    @Synchronized
+    fun get(factory: HttpClientFactory, baseUrl: String, ignoreSsl: Boolean): OkHttpClient {
+        return clients.getOrPut(factory) { HashMap() }
+            .getOrPut(Key(baseUrl, ignoreSsl)) { factory.buildClient(ignoreSsl) }
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun shutdown() {
+        generation++
+        for (client in clients.values.flatMap { it.values }) {
+            client.dispatcher.executorService.shutdown()
+            client.connectionPool.evictAll()
+            client.cache?.close()
+        }
+        clients.clear()
+    }
+}
@@ -8,10 +8,18 @@ import eu.pretix.libpretixsync.models.Question
 import eu.pretix.libpretixsync.models.QueuedCheckIn
 import eu.pretix.libpretixsync.utils.NetUtils
 import eu.pretix.libpretixsync.utils.URLFragmentEncoder
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
 import okhttp3.MediaType
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.asRequestBody
 import okhttp3.RequestBody.Companion.toRequestBody
@@ -23,7 +31,9 @@ import java.io.File
 import java.io.IOException
 import java.io.InterruptedIOException
 import java.io.UnsupportedEncodingException
+import java.net.InetSocketAddress
 import java.net.MalformedURLException
+import java.net.Proxy
 import java.net.SocketTimeoutException
 import java.net.URL
 import java.net.URLEncoder
@@ -37,9 +47,40 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
     private val orgaSlug: String
     private val key: String
     private val version: Int
-    private val client: OkHttpClient
+    private val httpClientFactory: HttpClientFactory
+    private val ignoreSsl: Boolean
     var sentry: SentryInterface
 
+    private class SharedClient(val client: OkHttpClient, val generation: Long)
+
+    @Volatile
+    private var sharedClient: SharedClient? = null
+
+    // Looked up again after HttpClientRegistry.shutdown(), so the API keeps working afterwards
+    private val client: OkHttpClient
+        get() {
+            val generation = HttpClientRegistry.generation
+            val shared = sharedClient
+            if (shared != null && shared.generation == generation) {
+                return shared.client
+            }
+            val client = withRateLimit(HttpClientRegistry.get(httpClientFactory, url, ignoreSsl))
+            sharedClient = SharedClient(client, generation)
+            return client
+        }
+
+    // Requests are always held back by the RateLimiter of their host, no matter which factory
+    // built the client. The derived client shares the connection pool and dispatcher.
+    private fun withRateLimit(client: OkHttpClient): OkHttpClient {
+        if (client.interceptors.any { it is RateLimitInterceptor }) {
+            return client
+        }
+        return client.newBuilder().addInterceptor(RateLimitInterceptor()).build()
+    }
+
+    // Priority of the requests made by the current thread, see RateLimiter
+    private val priority = ThreadLocal<RequestPriority>()
+
     inner class ApiResponse(val data: JSONObject?, val response: Response)
 
     @Throws(ApiException::class, JSONException::class)
@@ -216,12 +257,7 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
     }
 
     fun eventResourceUrl(eventSlug: String, resource: String): String {
-        return try {
-            URL(URL(url), "/api/v1/organizers/$orgaSlug/events/${eventSlug}/$resource/").toString()
-        } catch (e: MalformedURLException) {
-            e.printStackTrace()
-            ""
-        }
+        return eventResourceUrl(url, orgaSlug, eventSlug, resource)
     }
 
     @Throws(ApiException::class)
@@ -333,6 +369,135 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
         return fetchResource(full_url, null)
     }
 
+    /**
+     * Count and next page of a page fetched with [fetchPage].
+     */
+    class PageInfo(val count: Int, val next: String?, val response: Response)
+
+    /**
+     * Fetches a page of a paginated resource like [fetchResource], but parses the response while
+     * it is read and passes every element of `results` to [onResult] on its own, so the page is
+     * never held in memory as a whole. [onHeaders] is called as soon as the response has started.
+     */
+    @Throws(ApiException::class, ResourceNotModified::class)
+    open fun fetchPage(
+        full_url: String,
+        if_modified_since: String? = null,
+        onHeaders: ((Response) -> Unit)? = null,
+        onResult: (JSONObject) -> Unit,
+    ): PageInfo {
+        var request = Request.Builder()
+                .url(full_url)
+                .header("Authorization", "Device $key")
+        if (acceptLanguage != null) {
+            request = request.header("Accept-Language", acceptLanguage)
+        }
+        if (if_modified_since != null) {
+            request = request.header("If-Modified-Since", if_modified_since)
+        }
+        val builtRequest = request.get().build()
+        val response = execute(builtRequest)
+        if (response.code != 200) {
+            // Errors are small, handle them as usual
+            handleResponse(builtRequest, response, true)
+            throw ApiException("Server error: " + response.code)
+        }
+        sentry.addHttpBreadcrumb(safeUrl(builtRequest), builtRequest.method, response.code)
+        try {
+            onHeaders?.invoke(response)
+            response.body!!.byteStream().use { stream ->
+                pageJsonFactory.createParser(stream).use { parser ->
+                    return parsePage(parser, response, onResult)
+                }
+            }
+        } catch (e: JsonProcessingException) {
+            sentry.captureException(e)
+            throw ApiException("Invalid JSON received: " + e.originalMessage, e)
+        } catch (e: JSONException) {
+            // e.g. numbers org.json does not accept, like 1e999
+            sentry.captureException(e)
+            throw ApiException("Invalid JSON received: " + e.message, e)
+        } catch (e: ApiException) {
+            throw e
+        } catch (e: IOException) {
+            e.printStackTrace()
+            throw ApiException("Connection error: " + e.message, e)
+        } finally {
+            response.close()
+        }
+    }
+
+    private fun parsePage(parser: JsonParser, response: Response, onResult: (JSONObject) -> Unit): PageInfo {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw ApiException("Invalid JSON received: no object")
+        }
+        var count = 0
+        var next: String? = null
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            val token = parser.nextToken()
+            when (name) {
+                "count" -> count = parser.intValue
+                "next" -> next = if (token == JsonToken.VALUE_NULL) null else parser.text
+                "results" -> {
+                    if (token != JsonToken.START_ARRAY) {
+                        throw ApiException("Invalid JSON received: results is no list")
+                    }
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        onResult(readObject(parser))
+                    }
+                }
+                else -> parser.skipChildren()
+            }
+        }
+        return PageInfo(count, next, response)
+    }
+
+    // Elements are built directly from the tokens, with values converted like org.json does when
+    // parsing the text, so they are the same as if the whole page was parsed by org.json.
+    private fun readObject(parser: JsonParser): JSONObject {
+        val obj = JSONObject()
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            parser.nextToken()
+            obj.put(name, readValue(parser))
+        }
+        return obj
+    }
+
+    private fun readArray(parser: JsonParser): JSONArray {
+        val arr = JSONArray()
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            arr.put(readValue(parser))
+        }
+        return arr
+    }
+
+    private fun readValue(parser: JsonParser): Any {
+        return when (parser.currentToken) {
+            JsonToken.START_OBJECT -> readObject(parser)
+            JsonToken.START_ARRAY -> readArray(parser)
+            JsonToken.VALUE_STRING -> parser.text
+            // Integer if it fits, otherwise Long, and the plain text if it does not even fit a Long
+            JsonToken.VALUE_NUMBER_INT -> {
+                val text = parser.text
+                val value = text.toLongOrNull()
+                if (value == null) {
+                    text
+                } else if (value == value.toInt().toLong()) {
+                    value.toInt()
+                } else {
+                    value
+                }
+            }
+            JsonToken.VALUE_NUMBER_FLOAT -> java.lang.Double.valueOf(parser.text)
+            JsonToken.VALUE_TRUE -> true
+            JsonToken.VALUE_FALSE -> false
+            JsonToken.VALUE_NULL -> JSONObject.NULL
+            else -> throw ApiException("Invalid JSON received: unexpected " + parser.currentToken)
+        }
+    }
+
     @Throws(ApiException::class)
     open fun downloadFile(full_url: String): ApiResponse {
         var request = Request.Builder()
@@ -349,6 +514,21 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
         }
     }
 
+    /**
+     * Runs the requests made by the current thread in [block] as interactive ones, which get ahead
+     * of a running sync, see [RateLimiter]. Meant for requests someone is waiting for, like checks
+     * and searches. All other requests are bulk requests.
+     */
+    fun <T> interactive(block: () -> T): T {
+        val previous = priority.get()
+        priority.set(RequestPriority.INTERACTIVE)
+        try {
+            return block()
+        } finally {
+            if (previous == null) priority.remove() else priority.set(previous)
+        }
+    }
+
     @Throws(ApiException::class, ResourceNotModified::class)
     private fun apiCall(
         request: Request,
@@ -356,19 +536,22 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
         is_retry: Boolean = false,
         callTimeout: Long? = null
     ): ApiResponse {
-        val response: Response
-        val httpClient = if (callTimeout != null) {
-            client.newBuilder()
-                .connectTimeout(callTimeout, TimeUnit.MILLISECONDS)
-                .readTimeout(callTimeout, TimeUnit.MILLISECONDS)
-                .writeTimeout(callTimeout, TimeUnit.MILLISECONDS)
-                .callTimeout(callTimeout, TimeUnit.MILLISECONDS)
-                .build()
-        } else {
-            client
-        }
-        response = try {
-            httpClient.newCall(request).execute()
+        return handleResponse(request, execute(request, is_retry, callTimeout), json)
+    }
+
+    @Throws(ApiException::class)
+    private fun execute(request: Request, is_retry: Boolean = false, callTimeout: Long? = null): Response {
+        val httpClient = client
+        val taggedRequest = request.newBuilder()
+            .tag(RequestPriority::class.java, priority.get() ?: RequestPriority.BULK)
+            .build()
+        return try {
+            val call = httpClient.newCall(taggedRequest)
+            if (callTimeout != null) {
+                // Bounds the whole call, including connecting, writing and reading
+                call.timeout().timeout(callTimeout, TimeUnit.MILLISECONDS)
+            }
+            call.execute()
         } catch (e: SSLPeerUnverifiedException) {
             if (!is_retry) {
                 // On Windows, we occasionally see SSL errors after a long period of idle. We didn't fully figure
@@ -376,10 +559,13 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
                 // We assume it's safe to retry in all cases since the verification happens before any payload
                 // reaches the server.
                 httpClient.connectionPool.evictAll()
-                return apiCall(request, json, is_retry, callTimeout)
+                return execute(request, is_retry, callTimeout)
             }
             e.printStackTrace()
             throw ApiException("Error while creating a secure connection.", e)
+        } catch (e: RateLimitedException) {
+            // Treated like a timeout, so an online check falls back to checking offline
+            throw TimeoutApiException("Rate limited: " + e.message, e)
         } catch (e: SocketTimeoutException) {
             e.printStackTrace()
             throw TimeoutApiException("Connection error: " + e.message, e)
@@ -390,8 +576,15 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
             e.printStackTrace()
             throw ApiException("Connection error: " + e.message, e)
         }
-        val safe_url = request.url.toString().replace("^(.*)key=([0-9A-Za-z]+)([^0-9A-Za-z]*)".toRegex(), "$1key=redacted$3")
-        sentry.addHttpBreadcrumb(safe_url, request.method, response.code)
+    }
+
+    private fun safeUrl(request: Request): String {
+        return request.url.toString().replace("^(.*)key=([0-9A-Za-z]+)([^0-9A-Za-z]*)".toRegex(), "$1key=redacted$3")
+    }
+
+    @Throws(ApiException::class, ResourceNotModified::class)
+    private fun handleResponse(request: Request, response: Response, json: Boolean): ApiResponse {
+        sentry.addHttpBreadcrumb(safeUrl(request), request.method, response.code)
         var body = ""
         if (json) {
             body = try {
@@ -475,6 +668,75 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
         }
     }
 
+    /**
+     * Timings of a [ping]. [connectNanos] is the time until a connection was available, which
+     * includes DNS, TCP and TLS if no pooled connection could be reused, [requestNanos] is the
+     * time of the request itself.
+     */
+    class PingTimings(val connectNanos: Long, val requestNanos: Long, val newConnection: Boolean, val protocol: Protocol?)
+
+    /**
+     * Makes a cheap request to the server, which establishes a connection in the client's pool
+     * if there is none, or keeps the existing one from being closed for being idle. Fails with an
+     * [ApiException] if the server does not answer successfully.
+     */
+    @Throws(ApiException::class)
+    open fun ping(callTimeout: Long? = null): PingTimings {
+        val listener = object : EventListener() {
+            var start = 0L
+            var acquired = 0L
+            var newConnection = false
+            var protocol: Protocol? = null
+
+            override fun callStart(call: Call) {
+                start = System.nanoTime()
+            }
+
+            override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+                newConnection = true
+            }
+
+            override fun connectionAcquired(call: Call, connection: Connection) {
+                acquired = System.nanoTime()
+                protocol = connection.protocol()
+            }
+        }
+        // A derived client shares the connection pool and dispatcher of the original one
+        val httpClient = client.newBuilder().eventListener(listener).build()
+        val request = Request.Builder()
+                .url(apiURL("device/info"))
+                .header("Authorization", "Device $key")
+                .get()
+                .build()
+        val code = try {
+            val call = httpClient.newCall(request)
+            if (callTimeout != null) {
+                call.timeout().timeout(callTimeout, TimeUnit.MILLISECONDS)
+            }
+            call.execute().use { it.code }
+        } catch (e: SSLPeerUnverifiedException) {
+            // See apiCall, the pooled connection was most likely closed by the server
+            evictConnections()
+            throw ApiException("Error while creating a secure connection.", e)
+        } catch (e: IOException) {
+            throw ApiException("Connection error: " + e.message, e)
+        }
+        if (code !in 200..299) {
+            // An error is quick to serve, but does not mean that the server is usable
+            throw ApiException("Server error: $code")
+        }
+        val end = System.nanoTime()
+        return PingTimings(listener.acquired - listener.start, end - listener.acquired, listener.newConnection, listener.protocol)
+    }
+
+    /**
+     * Closes all idle connections, e.g. after the network changed, so no request tries to reuse
+     * a connection that is no longer usable.
+     */
+    fun evictConnections() {
+        client.connectionPool.evictAll()
+    }
+
     @Throws(ApiException::class)
     open fun uploadFile(file: File, mediaType: MediaType, filename: String): String {
         var request = Request.Builder()
@@ -504,14 +766,32 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
          */
         const val SUPPORTED_API_VERSION = 4
         val JSON: MediaType = "application/json; charset=utf-8".toMediaType()
+
+        // Streaming parser for pages, see readObject
+        private val pageJsonFactory = JsonFactory()
+        // Shared, so APIs created without a factory share their client, see HttpClientRegistry
+        private val defaultHttpClientFactory = DefaultHttpClientFactory()
+
         fun fromConfig(config: ConfigStore, httpClientFactory: HttpClientFactory?=null, acceptLanguage: String? = null): PretixApi {
             return PretixApi(config.apiUrl, config.apiKey, config.organizerSlug,
-                    config.apiVersion, httpClientFactory ?: DefaultHttpClientFactory(), acceptLanguage)
+                    config.apiVersion, httpClientFactory ?: defaultHttpClientFactory, acceptLanguage)
         }
 
         fun fromConfig(config: ConfigStore): PretixApi {
             return fromConfig(config, null)
         }
+
+        /**
+         * Builds the URL of an event resource without the need for an API client instance.
+         */
+        fun eventResourceUrl(url: String, orgaSlug: String, eventSlug: String, resource: String): String {
+            return try {
+                URL(URL(url), "/api/v1/organizers/$orgaSlug/events/${eventSlug}/$resource/").toString()
+            } catch (e: MalformedURLException) {
+                e.printStackTrace()
+                ""
+            }
+        }
     }
 
     init {
@@ -523,7 +803,8 @@ open class PretixApi(url: String, key: String, orgaSlug: String, version: Int, h
         this.key = key
         this.orgaSlug = orgaSlug
         this.version = version
-        client = httpClientFactory.buildClient(NetUtils.ignoreSSLforURL(url))
+        this.httpClientFactory = httpClientFactory
+        this.ignoreSsl = NetUtils.ignoreSSLforURL(url)
         sentry = DummySentryImplementation()
     }
 }
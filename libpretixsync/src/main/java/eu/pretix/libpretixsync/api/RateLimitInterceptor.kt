@@ -3,19 +3,36 @@ package eu.pretix.libpretixsync.api
 import okhttp3.Interceptor
 import okhttp3.Response
 
+/**
+ * Holds back requests with the [RateLimiter] of their host and, if the server answers with a
+ * rate limit error, retries once after the time the server asked for. The priority of a
+ * request is taken from its [RequestPriority] tag, requests without one are treated as bulk.
+ */
 class RateLimitInterceptor() : Interceptor {
     override fun intercept(chain: Interceptor.Chain): Response {
-        var response: Response = chain.proceed(chain.request())
+        val request = chain.request()
+        val priority = request.tag(RequestPriority::class.java) ?: RequestPriority.BULK
+        val limiter = RateLimiter.forHost(request.url.host)
+
+        limiter.await(priority)
+        var response: Response = chain.proceed(request)
 
         // 429 is how the api indicates a rate limit error
-        if (!response.isSuccessful && response.code == 429) {
-            val retry_after = Integer.parseInt(response.header("Retry-After", "1")).toLong()
-            try {
-                Thread.sleep(retry_after * 1000L)
-            } catch (e: InterruptedException) {
+        if (response.code == 429) {
+            limiter.block(retryAfterMillis(response))
+            response.close()
+            limiter.await(priority)
+            response = chain.proceed(request)
+            if (response.code == 429) {
+                limiter.block(retryAfterMillis(response))
             }
-            response = chain.proceed(chain.request())
         }
         return response
     }
+
+    private fun retryAfterMillis(response: Response): Long {
+        // Retry-After may also be a date, in which case we just wait for a second
+        val seconds = response.header("Retry-After")?.trim()?.toLongOrNull() ?: 1L
+        return seconds.coerceAtLeast(0) * 1000L
+    }
 }
@@ -0,0 +1,9 @@
+package eu.pretix.libpretixsync.api
+
+import java.io.IOException
+
+/**
+ * Thrown by [RateLimitInterceptor] if a request would have to wait too long for the server's rate
+ * limit, see [RateLimiter].
+ */
+class RateLimitedException(msg: String) : IOException(msg)
@@ -0,0 +1,128 @@
+package eu.pretix.libpretixsync.api
+
+import java.io.InterruptedIOException
+import kotlin.math.ceil
+
+/**
+ * Client-side rate limiter for one API host, shared by all clients talking to that host.
+ *
+ * If the server answers with a `Retry-After`, all requests to the host wait until it has passed.
+ * Interactive requests wait at most [INTERACTIVE_MAX_WAIT_MS] and fail with a
+ * [RateLimitedException] otherwise, so the scan can be handled offline instead. Bulk requests wait
+ * at most [BULK_MAX_WAIT_MS], so a sync fails and is retried later instead of hanging on a long
+ * `Retry-After`.
+ *
+ * Requests are additionally paced proactively with [pacing]. The default only holds back bulk
+ * requests once they exceed [DEFAULT_PACING] for a while, it can be changed or turned off per host.
+ *
+ * Waiting blocks the thread making the request. All requests of this library are made
+ * synchronously by threads that wait for the response anyway, so no dispatcher thread is blocked.
+ */
+class RateLimiter {
+    /**
+     * Pacing with a token bucket of [capacity] tokens that refills with [refillPerSecond] tokens
+     * per second. Bulk requests leave [interactiveReserve] tokens in the bucket, so interactive
+     * requests never wait for tokens and get ahead of a running sync.
+     */
+    class Pacing(
+        val capacity: Double = 10.0,
+        val refillPerSecond: Double = 5.0,
+        val interactiveReserve: Double = 3.0,
+    )
+
+    private var tokens = DEFAULT_PACING.capacity
+    private var lastRefill = System.nanoTime()
+    private var blockedUntil = 0L
+
+    var pacing: Pacing? = DEFAULT_PACING
+        @Synchronized get
+        @Synchronized set(value) {
+            field = value
+            tokens = value?.capacity ?: 0.0
+            lastRefill = System.nanoTime()
+        }
+
+    /**
+     * Blocks until a request with the given priority may be sent.
+     */
+    @Throws(RateLimitedException::class, InterruptedIOException::class)
+    fun await(priority: RequestPriority) {
+        val maxWait = if (priority == RequestPriority.INTERACTIVE) INTERACTIVE_MAX_WAIT_MS else BULK_MAX_WAIT_MS
+        var waited = 0L
+        while (true) {
+            val wait = tryAcquire(priority)
+            if (wait == 0L) {
+                return
+            }
+            if (waited + wait > maxWait) {
+                throw RateLimitedException("Rate limit of the server reached, retry in $wait ms")
+            }
+            try {
+                Thread.sleep(wait)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Interrupted while waiting for the rate limit")
+            }
+            waited += wait
+        }
+    }
+
+    /**
+     * Takes a token and returns 0 if a request may be sent right away, or returns the number of
+     * milliseconds to wait before trying again.
+     */
+    @Synchronized
+    fun tryAcquire(priority: RequestPriority): Long {
+        val now = System.nanoTime()
+        if (blockedUntil > now) {
+            return ceil((blockedUntil - now) / 1e6).toLong()
+        }
+        val pacing = pacing ?: return 0L
+
+        tokens = (tokens + (now - lastRefill) / 1e9 * pacing.refillPerSecond).coerceAtMost(pacing.capacity)
+        lastRefill = now
+        if (priority == RequestPriority.INTERACTIVE) {
+            tokens = (tokens - 1).coerceAtLeast(-pacing.capacity)
+            return 0L
+        }
+        val required = 1 + pacing.interactiveReserve
+        if (tokens >= required) {
+            tokens -= 1
+            return 0L
+        }
+        return ceil((required - tokens) / pacing.refillPerSecond * 1000).toLong()
+    }
+
+    /**
+     * Holds back all requests to the host for the given time, e.g. after the server answered
+     * with a `Retry-After`.
+     */
+    @Synchronized
+    fun block(millis: Long) {
+        blockedUntil = maxOf(blockedUntil, System.nanoTime() + millis * 1_000_000)
+    }
+
+    companion object {
+        const val INTERACTIVE_MAX_WAIT_MS = 1000L
+        const val BULK_MAX_WAIT_MS = 60_000L
+
+        /**
+         * Allows short bursts and about ten bulk requests per second, which a sync only reaches
+         * with very fast responses.
+         */
+        @JvmField
+        val DEFAULT_PACING = Pacing(capacity = 20.0, refillPerSecond = 10.0, interactiveReserve = 5.0)
+
+        private val limiters = HashMap<String, RateLimiter>()
+
+        /**
+         * Returns the limiter of the given host, e.g. to enable [pacing] for it.
+         */
+        @JvmStatic
+        fun forHost(host: String): RateLimiter {
+            synchronized(limiters) {
+                return limiters.getOrPut(host) { RateLimiter() }
+            }
+        }
+    }
+}
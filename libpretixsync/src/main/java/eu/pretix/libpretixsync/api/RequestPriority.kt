@@ -0,0 +1,12 @@
+package eu.pretix.libpretixsync.api
+
+/**
+ * Priority of a request for [RateLimiter], attached to OkHttp requests as a tag.
+ */
+enum class RequestPriority {
+    /** A request someone is waiting for, e.g. a check or a search */
+    INTERACTIVE,
+
+    /** A background request, e.g. a page of a sync */
+    BULK,
+}
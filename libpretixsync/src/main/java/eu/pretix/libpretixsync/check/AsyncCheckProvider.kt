@@ -4,8 +4,7 @@ import eu.pretix.libpretixsync.DummySentryImplementation
 import eu.pretix.libpretixsync.SentryInterface
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.config.ConfigStore
-import eu.pretix.libpretixsync.crypto.isValidSignature
-import eu.pretix.libpretixsync.crypto.readPubkeyFromPem
+import eu.pretix.libpretixsync.crypto.Sig1VerifierCache
 import eu.pretix.libpretixsync.crypto.sig1.TicketProtos
 import eu.pretix.libpretixsync.db.Answer
 import eu.pretix.libpretixsync.db.MediaPolicy
@@ -28,7 +27,6 @@ import eu.pretix.libpretixsync.utils.logic.JsonLogic
 import eu.pretix.libpretixsync.utils.logic.truthy
 import org.joda.time.DateTime
 import org.joda.time.DateTimeZone
-import org.joda.time.Duration
 import org.joda.time.IllegalInstantException
 import org.joda.time.format.ISODateTimeFormat
 import org.json.JSONArray
@@ -39,10 +37,23 @@ import java.nio.charset.Charset
 import java.time.Instant
 import java.time.OffsetDateTime
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.collections.filter
 
+/**
+ * Performs checks against the local database. Instances may be used by multiple threads at once,
+ * concurrent checks of the same ticket are serialized through [CheckLocks]. The locks are keyed on
+ * the secrets of the positions a scan resolves to, so scanning a ticket and a reusable medium
+ * linked to it at the same time is serialized as well.
+ */
 class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDatabase) : TicketCheckProvider {
-    private var sentry: SentryInterface = DummySentryImplementation()
+    @Volatile private var sentry: SentryInterface = DummySentryImplementation()
+    private val locks = CheckLocks.forDatabase(db)
+    private val jsonLogic: JsonLogic by lazy { initJsonLogic() }
+    private val failedCheckinUrls = ConcurrentHashMap<String, String>()
+    @Volatile private var timingListener: CheckTimingListener? = null
+    private val currentTimer = ThreadLocal<CheckTimer>()
+    private val dryRun = ThreadLocal<Boolean>()
 
     /*
      */
@@ -51,6 +62,46 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         this.sentry = sentry
     }
 
+    override fun setTimingListener(listener: CheckTimingListener?) {
+        this.timingListener = listener
+    }
+
+    /**
+     * Runs a single check and reports its timings to the timing listener, if one is set.
+     */
+    private fun instrumented(block: () -> TicketCheckProvider.CheckResult): TicketCheckProvider.CheckResult {
+        val listener = timingListener ?: return block()
+        val timer = CheckTimer()
+        currentTimer.set(timer)
+        val result = try {
+            block()
+        } finally {
+            currentTimer.remove()
+        }
+        listener.onCheckTimings(timer.finish(result))
+        return result
+    }
+
+    /**
+     * Runs a write of a check, unless the check is a synthetic one run by [prepare].
+     */
+    private inline fun store(block: () -> Unit) {
+        if (dryRun.get() == true) {
+            return
+        }
+        timed(CheckStage.STORE, block)
+    }
+
+    private inline fun <T> timed(stage: CheckStage, block: () -> T): T {
+        val timer = currentTimer.get() ?: return block()
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            timer.add(stage, System.nanoTime() - start)
+        }
+    }
+
     private fun storeFailedCheckin(eventSlug: String, listId: Long, error_reason: String, raw_barcode: String, type: TicketCheckProvider.CheckInType, position: Long? = null, item: Long? = null, variation: Long? = null, subevent: Long? = null, nonce: String?) {
         /*
            :<json boolean error_reason: One of ``canceled``, ``invalid``, ``unpaid``, ``product``, ``rules``, ``revoked``,
@@ -83,16 +134,21 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         if (variation != null && variation > 0) jdoc.put("variation", variation)
         if (subevent != null && subevent > 0) jdoc.put("subevent", subevent)
 
-        val api = PretixApi.fromConfig(config)  // todo: uses wrong http client
-        db.queuedCallQueries.insert(
-            body = jdoc.toString(),
-            idempotency_key = NonceGenerator.nextNonce(),
-            url = api.eventResourceUrl(eventSlug, "checkinlists") + listId + "/failed_checkins/",
-        )
+        store {
+            FailedCheckinLog.forDatabase(db).record(db, failedCheckinUrl(eventSlug, listId), jdoc.toString(), sentry)
+        }
+    }
+
+    private fun failedCheckinUrl(eventSlug: String, listId: Long): String {
+        val apiUrl = config.apiUrl
+        val organizerSlug = config.organizerSlug
+        return failedCheckinUrls.getOrPut("$apiUrl|$organizerSlug|$eventSlug|$listId") {
+            PretixApi.eventResourceUrl(apiUrl, organizerSlug, eventSlug, "checkinlists") + listId + "/failed_checkins/"
+        }
     }
 
     @Suppress("UNCHECKED_CAST")
-    private fun initJsonLogic(event: Event, subeventId: Long, tz: DateTimeZone): JsonLogic {
+    private fun initJsonLogic(): JsonLogic {
         val jsonLogic = JsonLogic()
         jsonLogic.addOperation("objectList") { l, _ -> l }
         jsonLogic.addOperation("lookup") { l, d -> l?.getOrNull(1) }
@@ -148,44 +204,52 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             }
         }
         jsonLogic.addOperation("buildTime") { l, d ->
-            val t = l?.getOrNull(0)
+            ((d as Map<*, *>)["buildTime"] as ((List<Any?>?) -> Any?)).invoke(l)
+        }
+        return jsonLogic
+    }
 
-            // Re-fetch event/sub-event to get raw JSON and use date values from that
-            // Should be less risky than converting back and forth between java.time and Joda
-            val evjson = if (subeventId != 0L) {
-                val jsonData = db.subEventQueries.selectByServerIdAndSlug(
-                    server_id = subeventId,
-                    event_slug = event.slug,
-                ).executeAsOne().json_data
+    private class CompiledRules(val rules: JSONObject, val source: String, val logic: JsonLogic.CompiledLogic)
 
-                JSONObject(jsonData)
-            } else {
-                val jsonData = db.eventQueries.selectById(event.id).executeAsOne().json_data
-                JSONObject(jsonData)
-            }
-            if (t == "custom") {
-                ISODateTimeFormat.dateTimeParser().parseDateTime(l.getOrNull(1) as String?)
-            } else if (t == "customtime") {
-                val time = ISODateTimeFormat.timeParser().parseLocalTime(l.getOrNull(1) as String?)
-                val today = DateTime(now()).withZone(tz).toLocalDate()
-                try {
-                    today.toLocalDateTime(time).toDateTime(tz)
-                } catch (e: IllegalInstantException) {
-                    // DST gap, let's rather do something wrong than crash :(
-                    today.toLocalDateTime(time.minusHours(1)).toDateTime(tz)
-                }
-            } else if (t == "date_from") {
-                ISODateTimeFormat.dateTimeParser().parseDateTime(evjson.getString("date_from"))
-            } else if (t == "date_to") {
-                ISODateTimeFormat.dateTimeParser().parseDateTime(evjson.optString("date_to"))
-            } else if (t == "date_admission") {
-                ISODateTimeFormat.dateTimeParser().parseDateTime(evjson.optString("date_admission")
-                        ?: evjson.getString("date_from"))
-            } else {
-                null
+    // Check-in list rules only change on sync, so we parse them once per list instead of once per scan
+    private val compiledRules = ConcurrentHashMap<Long, CompiledRules>()
+
+    private fun compileRules(list: CheckInList, rules: JSONObject): JsonLogic.CompiledLogic {
+        val known = compiledRules[list.serverId]
+        // The list comes from the cached CheckContext, so its rules are the same object until the
+        // context is reloaded, and we don't need to serialize them on every scan
+        if (known != null && known.rules === rules) {
+            return known.logic
+        }
+        val source = rules.toString()
+        val logic = if (known != null && known.source == source) known.logic else jsonLogic.compile(source)
+        compiledRules[list.serverId] = CompiledRules(rules, source, logic)
+        return logic
+    }
+
+    private fun buildTimeResolver(event: Event, subeventId: Long, tz: DateTimeZone): (List<Any?>?) -> Any? = { l ->
+        val t = l?.getOrNull(0)
+
+        if (t == "custom") {
+            ISODateTimeFormat.dateTimeParser().parseDateTime(l.getOrNull(1) as String?)
+        } else if (t == "customtime") {
+            val time = ISODateTimeFormat.timeParser().parseLocalTime(l.getOrNull(1) as String?)
+            val today = DateTime(now()).withZone(tz).toLocalDate()
+            try {
+                today.toLocalDateTime(time).toDateTime(tz)
+            } catch (e: IllegalInstantException) {
+                // DST gap, let's rather do something wrong than crash :(
+                today.toLocalDateTime(time.minusHours(1)).toDateTime(tz)
             }
+        } else if (t == "date_from") {
+            DateAnchorCache.forDatabase(db).get(db, event.slug, subeventId).dateFrom
+        } else if (t == "date_to") {
+            DateAnchorCache.forDatabase(db).get(db, event.slug, subeventId).dateTo
+        } else if (t == "date_admission") {
+            DateAnchorCache.forDatabase(db).get(db, event.slug, subeventId).dateAdmission
+        } else {
+            null
         }
-        return jsonLogic
     }
 
     private data class SignedTicketData(val seed: String, val item: Long, val variation: Long?, val subevent: Long?, val validFrom: DateTime?, val validUntil: DateTime?)
@@ -194,7 +258,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
     private fun decodePretixSig1(event: Event, qrcode: String): SignedTicketData? {
         val rawbytes: ByteArray
         try {
-            rawbytes = decodeBase64(qrcode.reversed().toByteArray(Charset.defaultCharset()))
+            rawbytes = timed(CheckStage.DECODE) { decodeBase64(qrcode.reversed().toByteArray(Charset.defaultCharset())) }
         } catch (e: Exception) {
             return null
         }
@@ -211,21 +275,18 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         val signature = rawbytes.copyOfRange(5 + payloadLength, 5 + payloadLength + signatureLength)
 
         val validKeys = event.validKeys?.optJSONArray("pretix_sig1") ?: return null
-        for (vki in 0 until validKeys.length()) {
-            val vk = validKeys.getString(vki)
-            if (isValidSignature(payload, signature, readPubkeyFromPem(decodeBase64(vk.toByteArray(Charset.defaultCharset())).toString(Charset.defaultCharset())))) {
-                val ticket = TicketProtos.Ticket.parseFrom(payload)
-                return SignedTicketData(
-                        ticket.seed,
-                        ticket.item,
-                        ticket.variation,
-                        ticket.subevent,
-                        if (ticket.hasValidFromUnixTime() && ticket.validFromUnixTime > 0) DateTime(ticket.validFromUnixTime * 1000) else null,
-                        if (ticket.hasValidUntilUnixTime() && ticket.validUntilUnixTime > 0) DateTime(ticket.validUntilUnixTime * 1000) else null
-                )
-            }
+        if (!timed(CheckStage.SIGNATURE) { Sig1VerifierCache.verify(event.slug, validKeys, payload, signature) }) {
+            return null
         }
-        return null
+        val ticket = timed(CheckStage.DECODE) { TicketProtos.Ticket.parseFrom(payload) }
+        return SignedTicketData(
+                ticket.seed,
+                ticket.item,
+                ticket.variation,
+                ticket.subevent,
+                if (ticket.hasValidFromUnixTime() && ticket.validFromUnixTime > 0) DateTime(ticket.validFromUnixTime * 1000) else null,
+                if (ticket.hasValidUntilUnixTime() && ticket.validUntilUnixTime > 0) DateTime(ticket.validUntilUnixTime * 1000) else null
+        )
     }
 
     data class RSAResult(
@@ -293,39 +354,40 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         allowQuestions: Boolean
     ): TicketCheckProvider.CheckResult {
         val dt = now()
-        val events = db.eventQueries.selectBySlugList(eventsAndCheckinLists.keys.toList())
-            .executeAsList()
-            .map { it.toModel() }
         var decoded: SignedTicketData? = null
-        var event: Event? = null
-        for (e in events) {
-            decoded = decodePretixSig1(e, ticketid)
-            event = e
+        var context: CheckContext? = null
+        for ((slug, lid) in eventsAndCheckinLists) {
+            val c = checkContext(slug, lid) ?: continue
+            decoded = decodePretixSig1(c.event, ticketid)
+            context = c
             if (decoded != null) break
         }
-        if (decoded == null || event == null) {
+        if (decoded == null || context == null) {
             val firstentry = eventsAndCheckinLists.entries.first()
             storeFailedCheckin(firstentry.key, firstentry.value, "invalid", ticketid, type, nonce = nonce)
             return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.INVALID, offline = true)
         }
+        val event = context.event
         val listId = eventsAndCheckinLists[event.slug] ?: return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "Check-in list not set for event", offline = true)
         val eventSlug = event.slug
-        val list = db.checkInListQueries.selectByServerIdAndEventSlug(
-            server_id = listId,
-            event_slug = eventSlug,
-        ).executeAsOneOrNull()?.toModel()
+        val list = context.list
             ?: return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "Check-in list not found", offline = true)
 
-        val is_revoked = db.revokedTicketSecretQueries.countForSecret(ticketid).executeAsOne()
-        if (is_revoked > 0) {
-            storeFailedCheckin(eventSlug, listId, "revoked", ticketid, type, nonce = nonce)
-            return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.REVOKED, offline = true)
+        val secretFilter = TicketSecretFilter.forDatabase(db)
+        if (secretFilter.mightBeRevoked(db, ticketid)) {
+            val is_revoked = db.revokedTicketSecretQueries.countForSecret(ticketid).executeAsOne()
+            if (is_revoked > 0) {
+                storeFailedCheckin(eventSlug, listId, "revoked", ticketid, type, nonce = nonce)
+                return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.REVOKED, offline = true)
+            }
         }
 
-        val is_blocked = db.blockedTicketSecretQueries.countBlockedForSecret(ticketid).executeAsOne()
-        if (is_blocked > 0) {
-            storeFailedCheckin(eventSlug, listId, "blocked", ticketid, type, nonce = nonce)
-            return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.BLOCKED, offline = true)
+        if (secretFilter.mightBeBlocked(db, ticketid)) {
+            val is_blocked = db.blockedTicketSecretQueries.countBlockedForSecret(ticketid).executeAsOne()
+            if (is_blocked > 0) {
+                storeFailedCheckin(eventSlug, listId, "blocked", ticketid, type, nonce = nonce)
+                return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.BLOCKED, offline = true)
+            }
         }
 
         if (type != TicketCheckProvider.CheckInType.EXIT) {
@@ -340,11 +402,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         }
 
         if (!list.allItems) {
-            val is_in_list = db.checkInListQueries.checkIfItemIsInListByServerId(
-                checkin_list_id = list.id,
-                item_server_id = decoded.item,
-            ).executeAsOne()
-            if (is_in_list == 0L) {
+            if (!context.isItemOnList(decoded.item)) {
                 storeFailedCheckin(eventSlug, listId, "product", ticketid, type, item = decoded.item, variation = decoded.variation, subevent = decoded.subevent, nonce = nonce)
                 return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.PRODUCT, offline = true)
             }
@@ -355,10 +413,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.INVALID, offline = true)
         }
 
-        val item = db.itemQueries.selectByServerIdAndEventSlug(
-            server_id = decoded.item,
-            event_slug = eventSlug,
-        ).executeAsOneOrNull()?.toModel()
+        val item = context.itemByServerId(decoded.item)
         if (item == null) {
             storeFailedCheckin(eventSlug, listId, "error", ticketid, type, subevent = decoded.subevent, nonce = nonce)
             return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "Item not found", offline = true)
@@ -383,17 +438,19 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         res.isRequireAttention = require_attention || (variation?.isCheckin_attention == true)
         res.checkinTexts = listOfNotNull(variation?.checkin_text?.trim(), item.checkInText?.trim()).filterNot { it.isBlank() }.filterNot { it.isBlank() || it == "null" }
 
-        val queuedCheckIns = db.queuedCheckInQueries.selectBySecret(ticketid)
+        val queuedCheckIns = db.queuedCheckInQueries.selectBySecretAndList(
+            secret = ticketid,
+            checkin_list_id = listId,
+        )
             .executeAsList()
-            .filter { it.checkinListId == listId }
             .map { it.toModel() }
             .sortedWith(compareBy({ it.dateTime }, { it.id }))
 
         val rules = list.rules
         if (type == TicketCheckProvider.CheckInType.ENTRY && rules != null && rules.length() > 0) {
-            val data = mutableMapOf<String, Any>()
+            val data = RuleData()
             val tz = DateTimeZone.forID(event.timezone.toString())
-            val jsonLogic = initJsonLogic(event, decoded.subevent ?: 0, tz)
+            data.put("buildTime", buildTimeResolver(event, decoded.subevent ?: 0, tz))
             data.put("product", item.serverId.toString())
             data.put("variation", if (decoded.variation != null && decoded.variation!! > 0) {
                 decoded.variation.toString()
@@ -403,42 +460,18 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             data.put("gate", config.deviceKnownGateID.toString())
             data.put("now", dt)
             data.put("now_isoweekday", dt.withZone(tz).dayOfWeek().get())
-            data.put("entries_number", queuedCheckIns.filter { it.type == "entry" }.size)
-            data.put("entries_today", queuedCheckIns.filter {
-                DateTime(it.fullDateTime).withZone(tz).toLocalDate() == dt.withZone(tz).toLocalDate() && it.type == "entry"
-            }.size)
-            data.put("entries_since", { cutoff: DateTime ->
-                queuedCheckIns.filter {
-                    DateTime(it.fullDateTime).withZone(tz).isAfter(cutoff.minus(Duration.millis(1))) && it.type == "entry"
-                }.size
-            })
-            data.put("entries_before", { cutoff: DateTime ->
-                queuedCheckIns.filter {
-                    DateTime(it.fullDateTime).withZone(tz).isBefore(cutoff) && it.type == "entry"
-                }.size
-            })
-            data.put("entries_days_since", { cutoff: DateTime ->
-                queuedCheckIns.filter {
-                    DateTime(it.fullDateTime).withZone(tz).isAfter(cutoff.minus(Duration.millis(1))) && it.type == "entry"
-                }.map {
-                    DateTime(it.fullDateTime).withZone(tz).toLocalDate()
-                }.toHashSet().size
-            })
-            data.put("entries_days_before", { cutoff: DateTime ->
-                queuedCheckIns.filter {
-                    DateTime(it.fullDateTime).withZone(tz).isBefore(cutoff) && it.type == "entry"
-                }.map {
-                    DateTime(it.fullDateTime).withZone(tz).toLocalDate()
-                }.toHashSet().size
-            })
-            data.put("entries_days", queuedCheckIns.filter { it.type == "entry" }.map {
-                DateTime(it.fullDateTime).withZone(tz).toLocalDate()
-            }.toHashSet().size)
-            val minutes_since_entries = queuedCheckIns.filter { it.type == "entry" }.map {
-                Duration(DateTime(it.fullDateTime).withZone(tz), dt).toStandardMinutes().minutes
+            val history by lazy(LazyThreadSafetyMode.NONE) {
+                EntryHistory(queuedCheckIns.filter { it.type == "entry" }.map { DateTime(it.fullDateTime) }, dt, tz)
             }
-            data.put("minutes_since_last_entry", minutes_since_entries.minOrNull() ?: -1)
-            data.put("minutes_since_first_entry", minutes_since_entries.maxOrNull() ?: -1)
+            data.putLazy("entries_number") { history.count }
+            data.putLazy("entries_today") { history.countToday }
+            data.put("entries_since", { cutoff: DateTime -> history.countSince(cutoff) })
+            data.put("entries_before", { cutoff: DateTime -> history.countBefore(cutoff) })
+            data.put("entries_days_since", { cutoff: DateTime -> history.daysSince(cutoff) })
+            data.put("entries_days_before", { cutoff: DateTime -> history.daysBefore(cutoff) })
+            data.putLazy("entries_days") { history.days }
+            data.putLazy("minutes_since_last_entry") { history.minutesSinceLast }
+            data.putLazy("minutes_since_first_entry") { history.minutesSinceFirst }
             data.put("entry_status", if (queuedCheckIns.lastOrNull()?.type == "entry") {
                 "present"
             } else {
@@ -446,7 +479,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             })
 
             try {
-                if (!jsonLogic.applyString(rules.toString(), data, safe = false).truthy) {
+                if (!timed(CheckStage.RULES) { compileRules(list, rules).apply(data, safe = false).truthy }) {
                     res.type = TicketCheckProvider.CheckResult.Type.RULES
                     res.isCheckinAllowed = false
                     storeFailedCheckin(
@@ -481,9 +514,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             }
         }
 
-        val questions = db.questionQueries.selectForItem(item.id)
-            .executeAsList()
-            .map { it.toModel() }
+        val questions = context.questionsForItem(db, item)
 
         val answerMap = mutableMapOf<Long, String>()
         if (answers != null) {
@@ -525,17 +556,19 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
                 res.isCheckinAllowed = true
                 res.type = TicketCheckProvider.CheckResult.Type.VALID
 
-                db.queuedCheckInQueries.insert(
-                    answers = givenAnswers.toString(),
-                    checkinListId = listId,
-                    datetime = dt.toDate(),
-                    datetime_string = QueuedCheckIn.formatDatetime(dt.toDate()),
-                    event_slug = eventSlug,
-                    nonce = nonce ?: NonceGenerator.nextNonce(),
-                    secret = ticketid,
-                    source_type = null,
-                    type = type.toString().lowercase(Locale.getDefault()),
-                )
+                store {
+                    db.queuedCheckInQueries.insert(
+                        answers = givenAnswers.toString(),
+                        checkinListId = listId,
+                        datetime = dt.toDate(),
+                        datetime_string = QueuedCheckIn.formatDatetime(dt.toDate()),
+                        event_slug = eventSlug,
+                        nonce = nonce ?: NonceGenerator.nextNonce(),
+                        secret = ticketid,
+                        source_type = null,
+                        type = type.toString().lowercase(Locale.getDefault()),
+                    )
+                }
             }
         }
         return res
@@ -572,15 +605,227 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             )
         }
 
-        val tickets = db.orderPositionQueries.selectBySecretAndEventSlugs(
-            secret = ticketid_cleaned,
-            event_slugs = eventsAndCheckinLists.keys.toList(),
-        ).executeAsList().map { it.toModel() }
+        return instrumented {
+            val tickets = timed(CheckStage.POSITION_LOOKUP) {
+                lookupPositions(eventsAndCheckinLists, ticketid_cleaned)
+            }
+            val resolved = resolveScan(eventsAndCheckinLists, ticketid_cleaned, source_type, tickets)
+
+            locks.withLocks(resolved.lockKeys) {
+                checkTickets(eventsAndCheckinLists, ticketid, ticketid_cleaned, resolved, answers, ignore_unpaid, type, nonce, allowQuestions)
+            }
+        }
+    }
+
+    /**
+     * Loads the check contexts, parses the signature keys, compiles the rules, loads the filters for
+     * revoked and blocked secrets and reads the indexes used by checks once, so the first real scans
+     * do not pay for it. Synthetic checks run through the full check, but nothing they would write
+     * is stored. They use secrets of tickets of the given events, or an unknown secret if there are
+     * not enough tickets.
+     */
+    override fun prepare(eventsAndCheckinLists: Map<String, Long>, syntheticChecks: Int): TicketCheckProvider.PrepareResult {
+        sentry.addBreadcrumb("provider.prepare", "offline preparation started")
+        val start = System.nanoTime()
+        val secretFilter = TicketSecretFilter.forDatabase(db)
+        secretFilter.mightBeRevoked(db, "")
+        secretFilter.mightBeBlocked(db, "")
+
+        for (eventSlug in eventsAndCheckinLists.keys) {
+            val (context, _) = resolveContext(eventsAndCheckinLists, eventSlug)
+            if (context == null) {
+                continue
+            }
+            val list = context.list!!
+
+            val validKeys = context.event.validKeys?.optJSONArray("pretix_sig1")
+            if (validKeys != null) {
+                Sig1VerifierCache.prepare(eventSlug, validKeys)
+            }
+            val rules = list.rules
+            if (rules != null && rules.length() > 0) {
+                compileRules(list, rules)
+                if (rules.toString().contains("\"buildTime\"")) {
+                    // The sub-event might be gone already, e.g. after OrderCleanup.deleteOldSubevents
+                    DateAnchorCache.forDatabase(db).getOrNull(db, eventSlug, list.subEventId ?: 0L)
+                }
+            }
+            for (item in context.items()) {
+                if (list.allItems || context.listItemIds().contains(item.id)) {
+                    context.questionsForItem(db, item)
+                }
+            }
+            CheckInStatistics.forList(db, list)
+
+            // Bring the pages of the indexes used by every check into the page cache
+            db.orderPositionQueries.selectBySecretAndEventSlugs(
+                secret = "",
+                event_slugs = listOf(eventSlug),
+            ).executeAsList()
+            db.queuedCheckInQueries.selectBySecretAndList(
+                secret = "",
+                checkin_list_id = list.serverId,
+            ).executeAsList()
+            db.checkInQueries.selectByPositionIdAndList(
+                position_id = -1L,
+                list_server_id = list.serverId,
+            ).executeAsList()
+        }
+
+        if (syntheticChecks > 0 && eventsAndCheckinLists.isNotEmpty()) {
+            val secrets = db.orderPositionQueries.selectSecretsForEventSlugs(
+                event_slugs = eventsAndCheckinLists.keys.toList(),
+                limit = syntheticChecks.toLong(),
+            ).executeAsList().mapNotNull { it.secret }
+            for (i in 0 until syntheticChecks) {
+                runSyntheticCheck(eventsAndCheckinLists, secrets.getOrElse(i) { "prepare-$i" })
+            }
+        }
+
+        return TicketCheckProvider.PrepareResult(
+            durationNanos = System.nanoTime() - start,
+            syntheticChecks = syntheticChecks.coerceAtLeast(0),
+        )
+    }
+
+    private fun runSyntheticCheck(eventsAndCheckinLists: Map<String, Long>, secret: String) {
+        evaluate(eventsAndCheckinLists, secret, "barcode", null, false, TicketCheckProvider.CheckInType.ENTRY, false)
+    }
 
-        if (tickets.size == 1) {
+    /**
+     * Runs the full check without storing anything, like the synthetic checks of [prepare].
+     */
+    override fun evaluate(
+        eventsAndCheckinLists: Map<String, Long>,
+        ticketid: String,
+        source_type: String,
+        answers: List<Answer>?,
+        ignore_unpaid: Boolean,
+        type: TicketCheckProvider.CheckInType,
+        allowQuestions: Boolean,
+    ): TicketCheckProvider.CheckResult {
+        val ticketid_cleaned = cleanInput(ticketid, source_type)
+        dryRun.set(true)
+        try {
+            val tickets = lookupPositions(eventsAndCheckinLists, ticketid_cleaned)
+            val resolved = resolveScan(eventsAndCheckinLists, ticketid_cleaned, source_type, tickets)
+            return locks.withLocks(resolved.lockKeys) {
+                checkTickets(eventsAndCheckinLists, ticketid, ticketid_cleaned, resolved, answers, ignore_unpaid, type, null, allowQuestions)
+            }
+        } finally {
+            dryRun.remove()
+        }
+    }
+
+    override fun checkBatch(eventsAndCheckinLists: Map<String, Long>, scans: List<TicketCheckProvider.ScanRequest>): List<TicketCheckProvider.CheckResult> {
+        sentry.addBreadcrumb("provider.checkBatch", "offline batch check started")
+
+        val secrets = scans.map { cleanInput(it.ticketid, it.source_type) }
+        val eventSlugs = eventsAndCheckinLists.keys.toList()
+        val cache = HotTicketCache.forDatabase(db)
+        val distinctSecrets = secrets.distinct()
+        val (cached, cacheVersion) = cache.getAll(distinctSecrets, eventSlugs)
+        val ticketsBySecret = cached.toMutableMap()
+        val loaded = mutableMapOf<String, MutableList<OrderPositionModel>>()
+        for (secret in distinctSecrets) {
+            if (secret !in cached) {
+                loaded[secret] = mutableListOf()
+            }
+        }
+        // Batched because of SQLite's limit on the number of variables, see BatchedQueryIterator
+        loaded.keys.toList().chunked(500).forEach { batch ->
+            db.orderPositionQueries.selectBySecretListAndEventSlugs(
+                secrets = batch,
+                event_slugs = eventSlugs,
+            ).executeAsList().forEach {
+                val position = it.toModel()
+                loaded[position.secret!!]?.add(position)
+            }
+        }
+        cache.putAll(cacheVersion, eventSlugs, loaded)
+        ticketsBySecret.putAll(loaded)
+        val resolved = scans.mapIndexed { i, scan ->
+            resolveScan(eventsAndCheckinLists, secrets[i], scan.source_type, ticketsBySecret[secrets[i]] ?: emptyList())
+        }
+
+        // All scans run in one transaction. Since order positions are not changed by a check, they
+        // can be resolved upfront, while everything that is changed by a check (check-ins, failed
+        // check-ins) is still read per scan, so a ticket can occur multiple times within a batch.
+        // All locks are taken before the transaction is opened, so we never wait for a lock while
+        // blocking other writers.
+        return locks.withLocks(resolved.flatMap { it.lockKeys }) {
+            db.transactionWithResult {
+                scans.mapIndexed { i, scan ->
+                    // The timings of the upfront lookup are not attributed to the individual scans
+                    instrumented {
+                        checkTickets(
+                            eventsAndCheckinLists,
+                            scan.ticketid,
+                            secrets[i],
+                            resolved[i],
+                            scan.answers,
+                            scan.ignore_unpaid,
+                            scan.type,
+                            scan.nonce,
+                            scan.allowQuestions,
+                        )
+                    }
+                }
+            }
+        }
+    }
+
+    private fun checkTickets(
+        eventsAndCheckinLists: Map<String, Long>,
+        ticketid: String,
+        ticketid_cleaned: String,
+        resolved: ResolvedScan,
+        answers: List<Answer>?,
+        ignore_unpaid: Boolean,
+        type: TicketCheckProvider.CheckInType,
+        nonce: String?,
+        allowQuestions: Boolean,
+    ): TicketCheckProvider.CheckResult {
+        val tickets = resolved.tickets
+        val medium = resolved.medium
+        if (medium != null) {
+            val firstentry = eventsAndCheckinLists.entries.first()
+            if (!medium.active) {
+                // FIXME: note that this was an medium source
+                storeFailedCheckin(firstentry.key, firstentry.value, "invalid", ticketid, type, nonce = nonce)
+                return TicketCheckProvider.CheckResult(
+                    TicketCheckProvider.CheckResult.Type.INVALID,
+                    "Medium not active",
+                    offline = true
+                )
+            }
+
+            if (medium.isExpired(javaTimeNow().toInstant().toEpochMilli())) {
+                // FIXME: note that this was an medium source
+                storeFailedCheckin(firstentry.key, firstentry.value, "invalid", ticketid, type, nonce = nonce)
+                return TicketCheckProvider.CheckResult(
+                    TicketCheckProvider.CheckResult.Type.INVALID,
+                    "Medium expired",
+                    offline = true
+                )
+            }
+
+            return checkOfflineWithData(
+                eventsAndCheckinLists,
+                ticketid_cleaned,
+                tickets,
+                answers,
+                ignore_unpaid,
+                type,
+                nonce,
+                allowQuestions,
+                mediumUsed = true
+            )
+        } else if (tickets.size == 1) {
             return checkOfflineWithData(eventsAndCheckinLists, ticketid_cleaned, tickets, answers, ignore_unpaid, type, nonce = nonce, allowQuestions = allowQuestions, mediumUsed = false)
         } else if (tickets.size > 1) {
-            val eventSlug = db.orderQueries.selectById(tickets[0].orderId).executeAsOne().event_slug!!
+            val eventSlug = db.orderQueries.selectById(tickets[0].orderId).executeAsOneOrNull()?.event_slug
+                ?: return checkOfflineWithData(eventsAndCheckinLists, ticketid_cleaned, tickets, answers, ignore_unpaid, type, nonce = nonce, allowQuestions = allowQuestions, mediumUsed = false)
             val itemServerId = db.itemQueries.selectById(tickets[0].itemId).executeAsOne().server_id
             storeFailedCheckin(
                 eventSlug,
@@ -600,54 +845,6 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             )
             return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.AMBIGUOUS)
         } else {
-            // we don't have a matching ticket / orderposition, but it may be a reusable medium identifier
-            val medium = db.reusableMediumQueries.selectForCheck(
-                identifier = ticketid_cleaned,
-                type = source_type,
-                event_slugs = eventsAndCheckinLists.keys.toList(),
-            ).executeAsOneOrNull()?.toModel()
-            if (medium != null) {
-                val firstentry = eventsAndCheckinLists.entries.first()
-                if (!medium.active) {
-                    // FIXME: note that this was an medium source
-                    storeFailedCheckin(firstentry.key, firstentry.value, "invalid", ticketid, type, nonce = nonce)
-                    return TicketCheckProvider.CheckResult(
-                        TicketCheckProvider.CheckResult.Type.INVALID,
-                        "Medium not active",
-                        offline = true
-                    )
-                }
-
-                if (medium.expires?.isBefore(javaTimeNow()) == true) {
-                    // FIXME: note that this was an medium source
-                    storeFailedCheckin(firstentry.key, firstentry.value, "invalid", ticketid, type, nonce = nonce)
-                    return TicketCheckProvider.CheckResult(
-                        TicketCheckProvider.CheckResult.Type.INVALID,
-                        "Medium expired",
-                        offline = true
-                    )
-                }
-
-                // there may be multiple tickets / orderpositions linked to this medium
-                // e.g. a medium linked to tickets in multiple, different events or
-                // a medium that's linked to two tickets, one currently valid and one expired or in the future.
-                val tickets = db.orderPositionQueries.selectByReusableMediumIdAndEventSlugs(
-                    reusablemedium_id = medium.id,
-                    event_slugs = eventsAndCheckinLists.keys.toList(),
-                ).executeAsList().map { it.toModel() }
-                return checkOfflineWithData(
-                    eventsAndCheckinLists,
-                    ticketid_cleaned,
-                    tickets,
-                    answers,
-                    ignore_unpaid,
-                    type,
-                    nonce,
-                    allowQuestions,
-                    mediumUsed = true
-                )
-            }
-
             return checkOfflineWithoutData(
                 eventsAndCheckinLists,
                 ticketid_cleaned,
@@ -659,6 +856,91 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         }
     }
 
+    /**
+     * The positions a scanned code refers to, either directly through their secret or through a
+     * reusable medium they are linked to. [lockKeys] are the keys of [CheckLocks] that need to be
+     * held while checking the scan: the secrets of all positions, or the scanned code if it did not
+     * resolve to any, e.g. for signed or unknown codes.
+     */
+    private class ResolvedScan(
+        val tickets: List<OrderPositionModel>,
+        val medium: ReusableMediumIndex.Entry?,
+        scanned: String,
+    ) {
+        val lockKeys: List<String> = tickets.mapNotNull { it.secret }.ifEmpty { listOf(scanned) }
+    }
+
+    /**
+     * Resolves a scan to positions before any lock is taken. Positions are not changed by checks,
+     * so this does not need to be serialized.
+     */
+    private fun resolveScan(
+        eventsAndCheckinLists: Map<String, Long>,
+        ticketid_cleaned: String,
+        source_type: String,
+        tickets: List<OrderPositionModel>,
+    ): ResolvedScan {
+        if (tickets.isNotEmpty()) {
+            return ResolvedScan(tickets, null, ticketid_cleaned)
+        }
+
+        // we don't have a matching ticket / orderposition, but it may be a reusable medium identifier
+        val medium = ReusableMediumIndex.forDatabase(db).lookup(db, source_type, ticketid_cleaned)
+            ?: return ResolvedScan(emptyList(), null, ticketid_cleaned)
+
+        // there may be multiple tickets / orderpositions linked to this medium
+        // e.g. a medium linked to tickets in multiple, different events or
+        // a medium that's linked to two tickets, one currently valid and one expired or in the future.
+        // A medium without tickets in the selected events is treated like an unknown code.
+        // The linked positions are looked up by their secret, so they usually come from
+        // HotTicketCache, just like the positions of a scanned secret.
+        val mediumTickets = timed(CheckStage.POSITION_LOOKUP) {
+            medium.positions
+                .filter { it.eventSlug in eventsAndCheckinLists }
+                .sortedBy { it.id }
+                .flatMap { linked ->
+                    lookupPositions(eventsAndCheckinLists, linked.secret).filter { it.id == linked.id }
+                }
+        }
+        if (mediumTickets.isEmpty()) {
+            return ResolvedScan(emptyList(), null, ticketid_cleaned)
+        }
+        return ResolvedScan(mediumTickets, medium, ticketid_cleaned)
+    }
+
+    private fun lookupPositions(eventsAndCheckinLists: Map<String, Long>, secret: String): List<OrderPositionModel> {
+        val eventSlugs = eventsAndCheckinLists.keys.toList()
+        return HotTicketCache.forDatabase(db).get(secret, eventSlugs) {
+            db.orderPositionQueries.selectBySecretAndEventSlugs(
+                secret = secret,
+                event_slugs = eventSlugs,
+            ).executeAsList().map { it.toModel() }
+        }
+    }
+
+    private fun checkContext(eventSlug: String, listId: Long): CheckContext? =
+        CheckContextCache.forDatabase(db).get(db, eventSlug, listId)
+
+    /**
+     * Looks up the check context of the given event and the list selected for it. Returns either a
+     * context with a list, or an error message.
+     */
+    private fun resolveContext(eventsAndCheckinLists: Map<String, Long>, eventSlug: String): Pair<CheckContext?, String?> {
+        val listId = eventsAndCheckinLists[eventSlug]
+        if (listId == null) {
+            return if (db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull() == null) {
+                Pair(null, "Event not found")
+            } else {
+                Pair(null, "No check-in list selected")
+            }
+        }
+        val context = checkContext(eventSlug, listId) ?: return Pair(null, "Event not found")
+        if (context.list == null) {
+            return Pair(null, "Check-in list not found")
+        }
+        return Pair(context, null)
+    }
+
     data class PositionFilteringError(
         val position: OrderPositionModel,
         val eventSlug: String,
@@ -667,34 +949,47 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         val message: String? = null
     )
 
-    private fun filterPositions(eventsAndCheckinLists: Map<String, Long>, positions: List<OrderPositionModel>): Pair<List<OrderPositionModel>, List<PositionFilteringError>> {
+    private fun filterPositions(eventsAndCheckinLists: Map<String, Long>, tickets: List<OrderPositionModel>): Pair<List<OrderPositionModel>, List<PositionFilteringError>> {
         var results = mutableListOf<OrderPositionModel>()
         val errors = mutableListOf<PositionFilteringError>()
-        positions.forEach { position ->
-            val order = db.orderQueries.selectById(position.orderId).executeAsOne().toModel()
-
-            val eventSlug = order.eventSlug
-            val event = db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
-            if (event == null) {
-                errors.add(PositionFilteringError(position, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "Event not found"))
-                return@forEach
-            }
+        if (tickets.isEmpty()) {
+            return Pair(results, errors)
+        }
 
-            val listId = eventsAndCheckinLists[eventSlug]
-            if (listId == null) {
-                errors.add(PositionFilteringError(position, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "No check-in list selected"))
-                return@forEach
-            }
+        // Load the orders of all tickets at once, as well as all positions of the orders that
+        // need add-on matching, instead of querying them for every candidate
+        val orders = db.orderQueries.selectByIdList(tickets.map { it.orderId }.distinct())
+            .executeAsList()
+            .associate { it.id to it.toModel() }
+        // Positions can outlive their order in HotTicketCache if orders are deleted while we look
+        // them up, those are treated as not found
+        val positions = tickets.filter { orders.containsKey(it.orderId) }
+        if (positions.isEmpty()) {
+            return Pair(results, errors)
+        }
+        val contexts = positions.map { resolveContext(eventsAndCheckinLists, orders.getValue(it.orderId).eventSlug) }
+        val addonMatchOrderIds = positions.filterIndexed { i, _ -> contexts[i].first?.list?.addonMatch == true }
+            .map { it.orderId }
+            .distinct()
+        val positionsByOrder = if (addonMatchOrderIds.isNotEmpty()) {
+            db.orderPositionQueries.selectForOrderList(addonMatchOrderIds)
+                .executeAsList()
+                .map { it.toModel() }
+                .groupBy { it.orderId }
+        } else {
+            emptyMap()
+        }
 
-            val list = db.checkInListQueries.selectByServerIdAndEventSlug(
-                server_id = listId,
-                event_slug = eventSlug,
-            ).executeAsOneOrNull()?.toModel()
+        positions.forEachIndexed { i, position ->
+            val order = orders.getValue(position.orderId)
 
-            if (list == null) {
-                errors.add(PositionFilteringError(position, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "Check-in list not found"))
-                return@forEach
+            val eventSlug = order.eventSlug
+            val (context, contextError) = contexts[i]
+            if (context == null) {
+                errors.add(PositionFilteringError(position, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, contextError))
+                return@forEachIndexed
             }
+            val list = context.list!!
 
             // server side: 3a.
             var resultingPositions = mutableSetOf(position)
@@ -702,24 +997,15 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
                 // Add-on matching, as per spec, but only if we have data, it's impossible in data-less mode
                 val candidates = mutableListOf<OrderPositionModel>()
 
-                val orderPositions = db.orderPositionQueries.selectForOrder(order.id).executeAsList()
-                    .map { it.toModel() }
+                val orderPositions = positionsByOrder[order.id] ?: emptyList()
                 candidates.addAll(orderPositions.filter {
                     it.addonToServerId == position.serverId
                 })
                 // server side: 3b.
                 val filteredCandidates = if (!list.allItems) {
-                    val items = db.checkInListQueries.selectItemIdsForList(list.id)
-                        .executeAsList()
-                        .map {
-                            // Not-null assertion needed for SQLite
-                            it.id!!
-                        }
-                        .toHashSet()
+                    val items = context.listItemIds()
                     candidates.filter { candidate ->
-                        val candidateItem =
-                            db.itemQueries.selectById(candidate.itemId).executeAsOne()
-                        items.contains(candidateItem.id)
+                        items.contains(candidate.itemId)
                     }
                 } else {
                     // This is a useless configuration that the backend won't allow, but we'll still handle
@@ -772,29 +1058,15 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             }
 
             if (nearestCandidate != null) {
-                val order = db.orderQueries.selectById(nearestCandidate.orderId).executeAsOne().toModel()
+                val order = orders.getValue(nearestCandidate.orderId)
 
                 val eventSlug = order.eventSlug
-                val event = db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
-                if (event == null) {
-                    return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "Event not found")))
+                val (context, contextError) = resolveContext(eventsAndCheckinLists, eventSlug)
+                if (context == null) {
+                    return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, contextError)))
                 }
 
-                val listId = eventsAndCheckinLists[eventSlug]
-                if (listId == null) {
-                    return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "No check-in list selected")))
-                }
-
-                val list = db.checkInListQueries.selectByServerIdAndEventSlug(
-                    server_id = listId,
-                    event_slug = eventSlug,
-                ).executeAsOneOrNull()?.toModel()
-
-                if (list == null) {
-                    return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, null, TicketCheckProvider.CheckResult.Type.ERROR, "Check-in list not found")))
-                }
-
-                return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, list, TicketCheckProvider.CheckResult.Type.INVALID_TIME)))
+                return Pair(listOf(), listOf(PositionFilteringError(nearestCandidate, eventSlug, context.list, TicketCheckProvider.CheckResult.Type.INVALID_TIME)))
             }
         }
 
@@ -815,7 +1087,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         // !!! When extending this, also extend checkOfflineWithoutData !!!
         val dt = now()
 
-        val (positions, err) = filterPositions(eventsAndCheckinLists, tickets)
+        val (positions, err) = timed(CheckStage.FILTER_POSITIONS) { filterPositions(eventsAndCheckinLists, tickets) }
         if (err.isNotEmpty()) {
             val firstError = err.first()
             val order = db.orderQueries.selectById(firstError.position.orderId).executeAsOne().toModel()
@@ -842,8 +1114,9 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             }
         }
         if (positions.isEmpty()) {
+            // Only happens if the orders of all tickets have been deleted in the meantime
             return TicketCheckProvider.CheckResult(
-                TicketCheckProvider.CheckResult.Type.ERROR,
+                TicketCheckProvider.CheckResult.Type.INVALID,
                 "No matching ticket found",
                 offline = true
             )
@@ -858,24 +1131,19 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         val position = positions[0]
 
         val order = db.orderQueries.selectById(position.orderId).executeAsOne().toModel()
-        val item = db.itemQueries.selectById(position.itemId).executeAsOne().toModel()
 
         val eventSlug = order.eventSlug
-        val event = db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
-                ?: return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "Event not found", offline = true)
-
-        val listId = eventsAndCheckinLists[eventSlug] ?: return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "No check-in list selected", offline = true)
-        val list = db.checkInListQueries.selectByServerIdAndEventSlug(
-            server_id = listId,
-            event_slug = eventSlug,
-        ).executeAsOneOrNull()?.toModel()
-            ?: return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, "Check-in list not found", offline = true)
-
-        val positionItem = if (position.id == tickets[0].id) {
-            item
-        } else {
-            db.itemQueries.selectById(position.itemId).executeAsOne().toModel()
+        val (context, contextError) = resolveContext(eventsAndCheckinLists, eventSlug)
+        if (context == null) {
+            return TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR, contextError, offline = true)
         }
+        val event = context.event
+        val listId = eventsAndCheckinLists.getValue(eventSlug)
+        val list = context.list!!
+
+        val item = context.itemById(position.itemId)
+            ?: db.itemQueries.selectById(position.itemId).executeAsOne().toModel()
+        val positionItem = item
 
         val jPosition: JSONObject
         jPosition = try {
@@ -921,10 +1189,13 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         res.isRequireAttention = require_attention || variation?.isCheckin_attention == true
         res.checkinTexts = listOfNotNull(order.checkInText?.trim(), variation?.checkin_text?.trim(), item.checkInText?.trim()).filterNot { it.isBlank() || it == "null" }
 
-        val storedCheckIns = db.checkInQueries.selectByPositionId(position.id).executeAsList().map { it.toModel() }
-        val checkIns = storedCheckIns.filter {
-            it.listServerId == listId
-        }.sortedWith(compareBy({ it.fullDateTime }, { it.id }))
+        val checkIns = db.checkInQueries.selectByPositionIdAndList(
+            position_id = position.id,
+            list_server_id = listId,
+        )
+            .executeAsList()
+            .map { it.toModel() }
+            .sortedWith(compareBy({ it.fullDateTime }, { it.id }))
 
         if (order.status != OrderModel.Status.PAID && order.status != OrderModel.Status.PENDING) {
             res.type = TicketCheckProvider.CheckResult.Type.CANCELED
@@ -965,11 +1236,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
         }
 
         if (!list.allItems) {
-            val is_in_list = db.checkInListQueries.checkIfItemIsInListByServerId(
-                checkin_list_id = list.id,
-                item_server_id = item.serverId,
-            ).executeAsOne()
-            if (is_in_list == 0L) {
+            if (!context.isItemOnList(item.serverId)) {
                 storeFailedCheckin(eventSlug, list.serverId, "product", position.secret!!, type, position = position.serverId, item = positionItem.serverId, variation = position.variationServerId, subevent = position.subEventServerId, nonce = nonce)
                 res.type = TicketCheckProvider.CheckResult.Type.PRODUCT
                 res.isCheckinAllowed = false
@@ -989,7 +1256,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             return res
         }
 
-        val settings = db.settingsQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
+        val settings = context.settings
         val reusableMediaUsageEnforced = (settings?.json?.optBoolean("reusable_media_usage_enforced", false) == true)
 
         val hasLinkedReusableMedium =
@@ -1015,50 +1282,26 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
 
         val rules = list.rules
         if (type == TicketCheckProvider.CheckInType.ENTRY && rules != null && rules.length() > 0) {
-            val data = mutableMapOf<String, Any>()
+            val data = RuleData()
             val tz = DateTimeZone.forID(event.timezone.toString())
-            val jsonLogic = initJsonLogic(event, position.subEventServerId!!, tz)
+            data.put("buildTime", buildTimeResolver(event, position.subEventServerId!!, tz))
             data.put("product", positionItem.serverId.toString())
             data.put("variation", position.variationServerId.toString())
             data.put("gate", config.deviceKnownGateID.toString())
             data.put("now", dt)
             data.put("now_isoweekday", dt.withZone(tz).dayOfWeek().get())
-            data.put("entries_number", checkIns.filter { it.type == "entry" }.size)
-            data.put("entries_today", checkIns.filter {
-                it.fullDateTime.withZone(tz).toLocalDate() == dt.withZone(tz).toLocalDate() && it.type == "entry"
-            }.size)
-            data.put("entries_since", { cutoff: DateTime ->
-                checkIns.filter {
-                    it.fullDateTime.withZone(tz).isAfter(cutoff.minus(Duration.millis(1))) && it.type == "entry"
-                }.size
-            })
-            data.put("entries_days_since", { cutoff: DateTime ->
-                checkIns.filter {
-                    it.fullDateTime.withZone(tz).isAfter(cutoff.minus(Duration.millis(1))) && it.type == "entry"
-                }.map {
-                    it.fullDateTime.withZone(tz).toLocalDate()
-                }.toHashSet().size
-            })
-            data.put("entries_before", { cutoff: DateTime ->
-                checkIns.filter {
-                    it.fullDateTime.withZone(tz).isBefore(cutoff) && it.type == "entry"
-                }.size
-            })
-            data.put("entries_days_before", { cutoff: DateTime ->
-                checkIns.filter {
-                    it.fullDateTime.withZone(tz).isBefore(cutoff) && it.type == "entry"
-                }.map {
-                    it.fullDateTime.withZone(tz).toLocalDate()
-                }.toHashSet().size
-            })
-            data.put("entries_days", checkIns.filter { it.type == "entry" }.map {
-                it.fullDateTime.withZone(tz).toLocalDate()
-            }.toHashSet().size)
-            val minutes_since_entries = checkIns.filter { it.type == "entry" }.map {
-                Duration(it.fullDateTime.withZone(tz), dt).toStandardMinutes().minutes
+            val history by lazy(LazyThreadSafetyMode.NONE) {
+                EntryHistory(checkIns.filter { it.type == "entry" }.map { it.fullDateTime }, dt, tz)
             }
-            data.put("minutes_since_last_entry", minutes_since_entries.minOrNull() ?: -1)
-            data.put("minutes_since_first_entry", minutes_since_entries.maxOrNull() ?: -1)
+            data.putLazy("entries_number") { history.count }
+            data.putLazy("entries_today") { history.countToday }
+            data.put("entries_since", { cutoff: DateTime -> history.countSince(cutoff) })
+            data.put("entries_before", { cutoff: DateTime -> history.countBefore(cutoff) })
+            data.put("entries_days_since", { cutoff: DateTime -> history.daysSince(cutoff) })
+            data.put("entries_days_before", { cutoff: DateTime -> history.daysBefore(cutoff) })
+            data.putLazy("entries_days") { history.days }
+            data.putLazy("minutes_since_last_entry") { history.minutesSinceLast }
+            data.putLazy("minutes_since_first_entry") { history.minutesSinceFirst }
             data.put("entry_status", if (checkIns.lastOrNull()?.type == "entry") {
                 "present"
             } else {
@@ -1066,7 +1309,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             })
 
             try {
-                if (!jsonLogic.applyString(rules.toString(), data, safe = false).truthy) {
+                if (!timed(CheckStage.RULES) { compileRules(list, rules).apply(data, safe = false).truthy }) {
                     res.type = TicketCheckProvider.CheckResult.Type.RULES
                     res.isCheckinAllowed = false
                     storeFailedCheckin(
@@ -1105,9 +1348,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
 
         // !!! When extending this, also extend checkOfflineWithoutData !!!
 
-        val questions = db.questionQueries.selectForItem(item.id)
-            .executeAsList()
-            .map { it.toModel() }
+        val questions = context.questionsForItem(db, item)
 
         val answerMap = position.answers?.toMutableMap() ?: mutableMapOf()
         if (answers != null) {
@@ -1151,26 +1392,34 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
                 res.isCheckinAllowed = true
                 res.type = TicketCheckProvider.CheckResult.Type.VALID
 
-                db.queuedCheckInQueries.insert(
-                    answers = givenAnswers.toString(),
-                    checkinListId = listId,
-                    datetime = dt.toDate(),
-                    datetime_string = QueuedCheckIn.formatDatetime(dt.toDate()),
-                    event_slug = eventSlug,
-                    nonce = nonce ?: NonceGenerator.nextNonce(),
-                    secret = position.secret,
-                    source_type = null,
-                    type = type.toString().lowercase(Locale.getDefault()),
-                )
-
-                db.checkInQueries.insert(
-                    server_id = null,
-                    listId = listId,
-                    position = position.id,
-                    type = type.toString().lowercase(Locale.getDefault()),
-                    datetime = dt.toDate(),
-                    json_data = "{\"local\": true, \"type\": \"${type.toString().lowercase(Locale.getDefault())}\", \"datetime\": \"${QueuedCheckIn.formatDatetime(dt.toDate())}\"}",
-                )
+                store {
+                    db.transaction {
+                        db.queuedCheckInQueries.insert(
+                            answers = givenAnswers.toString(),
+                            checkinListId = listId,
+                            datetime = dt.toDate(),
+                            datetime_string = QueuedCheckIn.formatDatetime(dt.toDate()),
+                            event_slug = eventSlug,
+                            nonce = nonce ?: NonceGenerator.nextNonce(),
+                            secret = position.secret,
+                            source_type = null,
+                            type = type.toString().lowercase(Locale.getDefault()),
+                        )
+
+                        db.checkInQueries.insert(
+                            server_id = null,
+                            listId = listId,
+                            position = position.id,
+                            type = type.toString().lowercase(Locale.getDefault()),
+                            datetime = dt.toDate(),
+                            json_data = "{\"local\": true, \"type\": \"${type.toString().lowercase(Locale.getDefault())}\", \"datetime\": \"${QueuedCheckIn.formatDatetime(dt.toDate())}\"}",
+                        )
+
+                        if (type == TicketCheckProvider.CheckInType.ENTRY && checkIns.none { it.type == "entry" }) {
+                            CheckInStatistics.recordCheckIn(db, list, order, item.id, position.variationServerId, position.subEventServerId)
+                        }
+                    }
+                }
             }
         }
 
@@ -1180,11 +1429,30 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
 
     @Throws(CheckException::class)
     override fun search(eventsAndCheckinLists: Map<String, Long>, query: String, page: Int): List<TicketCheckProvider.SearchResult> {
+        return searchPositions(eventsAndCheckinLists, query, afterId = 0L, offset = SEARCH_PAGE_SIZE * (page - 1L)).results
+    }
+
+    /**
+     * The cursor is the local ID of the last returned order position, as results are sorted by ID.
+     * Unlike with [search] by page number, the database does not need to skip over all results of
+     * previous pages.
+     */
+    @Throws(CheckException::class)
+    override fun search(eventsAndCheckinLists: Map<String, Long>, query: String, cursor: String?): TicketCheckProvider.SearchPage {
+        val afterId = if (cursor != null) {
+            cursor.toLongOrNull() ?: throw CheckException("Invalid search cursor")
+        } else {
+            0L
+        }
+        return searchPositions(eventsAndCheckinLists, query, afterId = afterId, offset = 0L)
+    }
+
+    private fun searchPositions(eventsAndCheckinLists: Map<String, Long>, query: String, afterId: Long, offset: Long): TicketCheckProvider.SearchPage {
         val query = query.uppercase(Locale.getDefault())
         sentry.addBreadcrumb("provider.search", "offline search started")
         val results: MutableList<TicketCheckProvider.SearchResult> = ArrayList()
         if (query.length < 4) {
-            return results
+            return TicketCheckProvider.SearchPage(results, null)
         }
 
         val eventFilter = mutableListOf<String>()
@@ -1269,31 +1537,93 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             true
         }
 
-        val positions = db.compatQueries.searchOrderPosition(
-            queryStartsWith = "$query%",
-            queryContains = "%$query%",
-            use_event_filter = useEventFilter,
-            event_filter = eventFilter,
-            use_event_item_filter = useEventItemFilter,
-            event_item_filter_events = eventItemFilterEvents,
-            event_item_filter_items = eventItemFilterItems,
-            use_event_subevent_filter = useEventSubEventFilter,
-            event_subevent_filter_events = eventSubEventFilterEvents,
-            event_subevent_filter_subevents = eventSubEventFilterSubEvents,
-            use_all_filter = useAllFilter,
-            all_filter_events = allFilterEvents,
-            all_filter_items = allFilterItems,
-            all_filter_subevents = allFilterSubEvents,
-            limit = 50L,
-            offset = 50L * (page - 1L),
-        )
+        // Use the search index if the query contains a word that is long enough, otherwise fall
+        // back to scanning all positions. The same applies if the index has not been filled yet
+        // after an upgrade.
+        val normalizedQuery = OrderPositionSearchIndex.normalize(query)
+        val token = if (OrderPositionSearchIndex.isComplete(db)) {
+            OrderPositionSearchIndex.queryToken(normalizedQuery)
+        } else {
+            null
+        }
+        val positionQuery = if (token != null) {
+            db.compatQueries.searchOrderPositionByToken(
+                token = token,
+                queryContains = "%$normalizedQuery%",
+                use_event_filter = useEventFilter,
+                event_filter = eventFilter,
+                use_event_item_filter = useEventItemFilter,
+                event_item_filter_events = eventItemFilterEvents,
+                event_item_filter_items = eventItemFilterItems,
+                use_event_subevent_filter = useEventSubEventFilter,
+                event_subevent_filter_events = eventSubEventFilterEvents,
+                event_subevent_filter_subevents = eventSubEventFilterSubEvents,
+                use_all_filter = useAllFilter,
+                all_filter_events = allFilterEvents,
+                all_filter_items = allFilterItems,
+                all_filter_subevents = allFilterSubEvents,
+                after_id = afterId,
+                limit = SEARCH_PAGE_SIZE,
+                offset = offset,
+            )
+        } else {
+            db.compatQueries.searchOrderPosition(
+                queryStartsWith = "$query%",
+                queryContains = "%$query%",
+                use_event_filter = useEventFilter,
+                event_filter = eventFilter,
+                use_event_item_filter = useEventItemFilter,
+                event_item_filter_events = eventItemFilterEvents,
+                event_item_filter_items = eventItemFilterItems,
+                use_event_subevent_filter = useEventSubEventFilter,
+                event_subevent_filter_events = eventSubEventFilterEvents,
+                event_subevent_filter_subevents = eventSubEventFilterSubEvents,
+                use_all_filter = useAllFilter,
+                all_filter_events = allFilterEvents,
+                all_filter_items = allFilterItems,
+                all_filter_subevents = allFilterSubEvents,
+                after_id = afterId,
+                limit = SEARCH_PAGE_SIZE,
+                offset = offset,
+            )
+        }
+        // The JSON data is parsed once per row and used for both the model and the result
+        val rows = positionQuery
             .executeAsList()
-            .map { it.toModel() }
+            .map {
+                val json = JSONObject(it.json_data)
+                Pair(it.toModel(json), json)
+            }
+        val positions = rows.map { it.first }
+        if (positions.isEmpty()) {
+            return TicketCheckProvider.SearchPage(results, null)
+        }
+
+        // Load everything needed for the results of this page at once instead of once per row
+        val orders = db.orderQueries.selectByIdList(positions.map { it.orderId }.distinct())
+            .executeAsList()
+            .associate { it.id to it.toModel() }
+        val items = db.itemQueries.selectByIdList(positions.map { it.itemId }.distinct())
+            .executeAsList()
+            .associate { it.id to it.toModel() }
+        val listIds = eventsAndCheckinLists.values.toList()
+        val checkedInPositionIds = db.checkInQueries.selectCheckedInPositionIds(
+            position_ids = positions.map { it.id },
+            list_server_ids = listIds,
+        ).executeAsList().mapNotNull { it.position }.toSet()
+        val secrets = positions.mapNotNull { it.secret }.ifEmpty {
+            // Dummy value, see comment on the filters above
+            listOf("")
+        }
+        val queuedSecrets = db.queuedCheckInQueries.selectCheckedInSecrets(
+            secrets = secrets,
+            checkin_list_ids = listIds,
+        ).executeAsList().map { it.secret }.toSet()
 
         // TODO: search invoice_address?
-        for (position in positions) {
-            val order = db.orderQueries.selectById(position.orderId).executeAsOne().toModel()
-            val item = db.itemQueries.selectById(position.itemId).executeAsOne().toModel()
+        for ((position, json) in rows) {
+            val order = orders.getValue(position.orderId)
+            val item = items.getValue(position.itemId)
             val sr = TicketCheckProvider.SearchResult()
             sr.ticket = item.internalName
             val variation = try {
@@ -1314,20 +1644,7 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
             sr.orderCode = order.code
             sr.positionId = position.positionId
             sr.secret = position.secret
-
-            val queuedCheckIns = db.queuedCheckInQueries.countForSecretAndLists(
-                secret = position.secret,
-                checkin_list_ids = eventsAndCheckinLists.values.toList(),
-            ).executeAsOne()
-            val checkIns = db.checkInQueries.selectByPositionId(position.id).executeAsList().map { it.toModel() }
-            var is_checked_in = queuedCheckIns > 0
-            for (ci in checkIns) {
-                if (eventsAndCheckinLists.containsValue(ci.listServerId)) {
-                    is_checked_in = true
-                    break
-                }
-            }
-            sr.isRedeemed = is_checked_in
+            sr.isRedeemed = position.id in checkedInPositionIds || position.secret in queuedSecrets
             if (order.status == OrderModel.Status.PAID) {
                 sr.status = TicketCheckProvider.SearchResult.Status.PAID
             } else if (order.status == OrderModel.Status.PENDING) {
@@ -1342,10 +1659,15 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
                 sentry.captureException(e)
             }
             sr.isRequireAttention = require_attention
-            sr.position = JSONObject(db.orderPositionQueries.selectById(position.id).executeAsOne().json_data)
+            sr.position = json
             results.add(sr)
         }
-        return results
+        val cursor = if (positions.size.toLong() == SEARCH_PAGE_SIZE) {
+            positions.last().id.toString()
+        } else {
+            null
+        }
+        return TicketCheckProvider.SearchPage(results, cursor)
     }
 
     @Throws(CheckException::class)
@@ -1367,79 +1689,25 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
                 .executeAsList()
                 .map { it.toModel() }
         }
+        val statistics = CheckInStatistics.forList(db, list)
         var sum_pos = 0
         var sum_ci = 0
         for (product in products) {
             val variations: MutableList<TicketCheckProvider.StatusResultItemVariation> = ArrayList()
             try {
-                val subEventId = if (list.subEventId != null && list.subEventId > 0) list.subEventId else -1L
-
-                val notAllItems = !list.allItems
-                val listItemIds = if (notAllItems) {
-                    db.checkInListQueries.selectItemIdsForList(list.id)
-                        .executeAsList()
-                        .map {
-                            // Not-null assertion needed for SQLite
-                            it.id!!
-                        }
-                } else {
-                    // Dummy ID that is not used. Required for SQLDelight to generate valid SQL.
-                    // See comments in search().
-                    listOf(-1L)
-                }
-
                 for (`var` in product.variations) {
-                    val position_count = db.compatQueries.countOrderPositionForStatus(
-                        event_slug = list.eventSlug,
-                        include_pending = list.includePending,
-                        subevent_id = subEventId,
-                        not_all_items = notAllItems,
-                        list_item_ids = listItemIds,
-                        only_checked_in_list_server_id = -1L,
-                        item_id = product.id,
-                        variation_id = `var`.server_id,
-                    ).executeAsOne().toInt()
-
-                    val ci_count = db.compatQueries.countOrderPositionForStatus(
-                        event_slug = list.eventSlug,
-                        include_pending = list.includePending,
-                        subevent_id = subEventId,
-                        not_all_items = notAllItems,
-                        list_item_ids = listItemIds,
-                        only_checked_in_list_server_id = list.serverId,
-                        item_id = product.id,
-                        variation_id = `var`.server_id,
-                    ).executeAsOne().toInt()
-
+                    val counts = statistics.variations[Pair(product.id, `var`.server_id)]
                     variations.add(TicketCheckProvider.StatusResultItemVariation(
                             `var`.server_id,
                             `var`.stringValue,
-                            position_count,
-                            ci_count
+                            counts?.positions?.toInt() ?: 0,
+                            counts?.checkIns?.toInt() ?: 0
                     ))
                 }
 
-                val position_count = db.compatQueries.countOrderPositionForStatus(
-                    event_slug = list.eventSlug,
-                    include_pending = list.includePending,
-                    subevent_id = subEventId,
-                    not_all_items = notAllItems,
-                    list_item_ids = listItemIds,
-                    only_checked_in_list_server_id = -1L,
-                    item_id = product.id,
-                    variation_id = -1L,
-                ).executeAsOne().toInt()
-
-                val ci_count = db.compatQueries.countOrderPositionForStatus(
-                    event_slug = list.eventSlug,
-                    include_pending = list.includePending,
-                    subevent_id = subEventId,
-                    not_all_items = notAllItems,
-                    list_item_ids = listItemIds,
-                    only_checked_in_list_server_id = list.serverId,
-                    item_id = product.id,
-                    variation_id = -1L,
-                ).executeAsOne().toInt()
+                val counts = statistics.items[product.id]
+                val position_count = counts?.positions?.toInt() ?: 0
+                val ci_count = counts?.checkIns?.toInt() ?: 0
 
                 items.add(TicketCheckProvider.StatusResultItem(
                         product.serverId,
@@ -1489,4 +1757,8 @@ class AsyncCheckProvider(private val config: ConfigStore, private val db: SyncDa
     // Replicates the behaviour of AbstractQueuedCheckIn.getFullDatetime()
     private val QueuedCheckIn.fullDateTime : Date
         get() = DateTime(this.dateTime.toInstant().toEpochMilli()).toDate()
+
+    companion object {
+        private const val SEARCH_PAGE_SIZE = 50L
+    }
 }
@@ -0,0 +1,97 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.models.CheckInList
+import eu.pretix.libpretixsync.models.Event
+import eu.pretix.libpretixsync.models.Item
+import eu.pretix.libpretixsync.models.Question
+import eu.pretix.libpretixsync.models.Settings
+import eu.pretix.libpretixsync.models.db.toModel
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Snapshot of everything the offline check needs to know about an event and one of its check-in
+ * lists, apart from the scanned ticket itself.
+ *
+ * Instances are created and handed out by [CheckContextCache] and must never be modified. When
+ * the underlying data is changed by a sync, a new context with a higher [version] is built.
+ */
+class CheckContext private constructor(
+    val version: Long,
+    val event: Event,
+    val list: CheckInList?,
+    val settings: Settings?,
+    private val itemsById: Map<Long, Item>,
+    private val itemsByServerId: Map<Long, Item>,
+    private val listItemIds: Set<Long>,
+) {
+    // Questions are only needed for tickets that actually reach the question step, so they are
+    // loaded on first use. Since the context is thrown away as a whole when questions are synced,
+    // this does not break the snapshot semantics.
+    private val questions = ConcurrentHashMap<Long, List<Question>>()
+
+    fun itemById(id: Long): Item? = itemsById[id]
+
+    fun items(): Collection<Item> = itemsById.values
+
+    fun itemByServerId(serverId: Long): Item? = itemsByServerId[serverId]
+
+    /**
+     * Local IDs of all items on the check-in list. Only meaningful if the list is not set to
+     * include all items.
+     */
+    fun listItemIds(): Set<Long> = listItemIds
+
+    fun isItemOnList(itemServerId: Long): Boolean {
+        val item = itemsByServerId[itemServerId] ?: return false
+        return listItemIds.contains(item.id)
+    }
+
+    fun questionsForItem(db: SyncDatabase, item: Item): List<Question> {
+        return questions.getOrPut(item.id) {
+            db.questionQueries.selectForItem(item.id)
+                .executeAsList()
+                .map { it.toModel() }
+        }
+    }
+
+    companion object {
+        internal fun load(db: SyncDatabase, eventSlug: String, listServerId: Long, version: Long): CheckContext? {
+            val event = db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
+                ?: return null
+
+            val list = db.checkInListQueries.selectByServerIdAndEventSlug(
+                server_id = listServerId,
+                event_slug = eventSlug,
+            ).executeAsOneOrNull()?.toModel()
+
+            val items = db.itemQueries.selectByEventSlug(eventSlug)
+                .executeAsList()
+                .map { it.toModel() }
+
+            val listItemIds = if (list != null && !list.allItems) {
+                db.checkInListQueries.selectItemIdsForList(list.id)
+                    .executeAsList()
+                    .map {
+                        // Not-null assertion needed for SQLite
+                        it.id!!
+                    }
+                    .toHashSet()
+            } else {
+                emptySet()
+            }
+
+            val settings = db.settingsQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.toModel()
+
+            return CheckContext(
+                version = version,
+                event = event,
+                list = list,
+                settings = settings,
+                itemsById = items.associateBy { it.id },
+                itemsByServerId = items.associateBy { it.serverId },
+                listItemIds = listItemIds,
+            )
+        }
+    }
+}
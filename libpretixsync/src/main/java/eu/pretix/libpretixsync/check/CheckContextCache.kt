@@ -0,0 +1,59 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Holds one [CheckContext] per event and check-in list of a database.
+ *
+ * The sync adapters for events, check-in lists, items, questions and settings call [invalidate]
+ * whenever they write data, and once more after their transaction has been committed. The second
+ * call makes sure that a context built in between from data that was not yet committed does not
+ * stay around.
+ */
+class CheckContextCache private constructor() {
+    private val contexts = ConcurrentHashMap<Pair<String, Long>, CheckContext>()
+    private val version = AtomicLong(0)
+
+    /**
+     * Returns the context for the given event and list, or `null` if the event does not exist.
+     * If only the list does not exist, a context with [CheckContext.list] set to `null` is returned.
+     */
+    fun get(db: SyncDatabase, eventSlug: String, listServerId: Long): CheckContext? {
+        val key = Pair(eventSlug, listServerId)
+        contexts[key]?.let { return it }
+
+        val v = version.get()
+        val context = CheckContext.load(db, eventSlug, listServerId, v) ?: return null
+        contexts[key] = context
+        if (version.get() != v) {
+            // Data changed while we were loading, don't keep a possibly outdated snapshot around
+            contexts.remove(key, context)
+        }
+        return context
+    }
+
+    fun invalidate(eventSlug: String) {
+        version.incrementAndGet()
+        contexts.keys.removeAll { it.first == eventSlug }
+    }
+
+    fun invalidateAll() {
+        version.incrementAndGet()
+        contexts.clear()
+    }
+
+    companion object {
+        // Keyed weakly by database, see TicketSecretFilter
+        private val caches = WeakHashMap<SyncDatabase, CheckContextCache>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): CheckContextCache {
+            synchronized(caches) {
+                return caches.getOrPut(db) { CheckContextCache() }
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.models.CheckInList
+import eu.pretix.libpretixsync.models.Order
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+
+/**
+ * Maintains the CheckInStatistic table, which holds the number of order positions and checked-in
+ * order positions per check-in list, item, variation and sub-event. [AsyncCheckProvider.status]
+ * reads it instead of counting positions and check-ins on every call.
+ *
+ * The statistics of a list are built with one grouped query on first use. Afterwards, they are
+ * kept up to date incrementally: local check-ins are counted by [recordCheckIn], and the order
+ * sync and the order cleanup collect how the positions they touch change in [Changes]. Only if a
+ * list's products, sub-event or handling of pending orders change, or if its counts turn out to be
+ * inconsistent, its statistics are dropped by [invalidateList] and rebuilt on next use. [rebuild]
+ * can also be used to check their consistency.
+ */
+object CheckInStatistics {
+    class Counts(var positions: Long = 0, var checkIns: Long = 0)
+
+    class ListStatistics(
+        /** Counts per item ID, summed up over all variations and sub-events */
+        val items: Map<Long, Counts>,
+        /** Counts per item ID and variation server ID, summed up over all sub-events */
+        val variations: Map<Pair<Long, Long>, Counts>,
+    )
+
+    fun forList(db: SyncDatabase, list: CheckInList): ListStatistics {
+        lock(db, list) {
+            if (db.checkInStatisticQueries.countStateForList(list.serverId).executeAsOne() == 0L) {
+                rebuild(db, list)
+            }
+        }
+        val items = mutableMapOf<Long, Counts>()
+        val variations = mutableMapOf<Pair<Long, Long>, Counts>()
+        for (row in db.checkInStatisticQueries.selectForList(list.serverId).executeAsList()) {
+            val itemCounts = items.getOrPut(row.item_id) { Counts() }
+            itemCounts.positions += row.position_count
+            itemCounts.checkIns += row.checkin_count
+            if (row.variation_server_id > 0) {
+                val variationCounts = variations.getOrPut(Pair(row.item_id, row.variation_server_id)) { Counts() }
+                variationCounts.positions += row.position_count
+                variationCounts.checkIns += row.checkin_count
+            }
+        }
+        return ListStatistics(items, variations)
+    }
+
+    /**
+     * Recomputes the statistics of a list from the order positions and check-ins in the database.
+     */
+    fun rebuild(db: SyncDatabase, list: CheckInList) = lock(db, list) {
+        val eventSlug = list.eventSlug ?: return@lock
+        val notAllItems = !list.allItems
+        val listItemIds = if (notAllItems) {
+            db.checkInListQueries.selectItemIdsForList(list.id)
+                .executeAsList()
+                .map {
+                    // Not-null assertion needed for SQLite
+                    it.id!!
+                }
+        } else {
+            // Dummy ID that is not used. Required for SQLDelight to generate valid SQL.
+            // See comments in search().
+            listOf(-1L)
+        }
+
+        db.transaction {
+            val rows = db.compatQueries.selectCheckInStatistics(
+                list_server_id = list.serverId,
+                event_slug = eventSlug,
+                include_pending = list.includePending,
+                subevent_id = if (list.subEventId != null && list.subEventId > 0) list.subEventId else -1L,
+                not_all_items = notAllItems,
+                list_item_ids = listItemIds,
+            ).executeAsList()
+
+            db.checkInStatisticQueries.deleteForList(list.serverId)
+            db.checkInStatisticQueries.deleteStateForList(list.serverId)
+            for (row in rows) {
+                val itemId = row.item_id ?: continue
+                db.checkInStatisticQueries.insert(
+                    event_slug = eventSlug,
+                    list_server_id = list.serverId,
+                    item_id = itemId,
+                    variation_server_id = row.variation_server_id,
+                    subevent_server_id = row.subevent_server_id,
+                    position_count = row.position_count,
+                    checkin_count = (row.checkin_count ?: 0).toLong(),
+                )
+            }
+            db.checkInStatisticQueries.insertState(
+                list_server_id = list.serverId,
+                event_slug = eventSlug,
+            )
+        }
+    }
+
+    // Serializes builds of the same list, which would otherwise both insert its state row
+    private fun <T> lock(db: SyncDatabase, list: CheckInList, block: () -> T): T =
+        CheckLocks.forDatabase(db).withLock("statistics:${list.serverId}", block)
+
+    /**
+     * Counts a local entry of a position that had not been checked in on this list before.
+     */
+    fun recordCheckIn(db: SyncDatabase, list: CheckInList, order: Order, itemId: Long, variationServerId: Long?, subEventServerId: Long?) {
+        val counted = order.status == Order.Status.PAID ||
+                (order.status == Order.Status.PENDING && (list.includePending || order.validIfPending))
+        if (!counted) {
+            return
+        }
+        db.checkInStatisticQueries.incrementCheckInCount(
+            list_server_id = list.serverId,
+            item_id = itemId,
+            variation_server_id = variationServerId ?: 0L,
+            subevent_server_id = subEventServerId ?: 0L,
+        )
+    }
+
+    /**
+     * Drops the statistics of a list, they are rebuilt on next use.
+     */
+    fun invalidateList(db: SyncDatabase, listServerId: Long) {
+        db.transaction {
+            db.checkInStatisticQueries.deleteForList(listServerId)
+            db.checkInStatisticQueries.deleteStateForList(listServerId)
+        }
+    }
+
+    /**
+     * Drops the statistics of all lists of an event, they are rebuilt on next use.
+     */
+    fun invalidate(db: SyncDatabase, eventSlug: String) {
+        db.transaction {
+            db.checkInStatisticQueries.deleteForEvent(eventSlug)
+            db.checkInStatisticQueries.deleteStateForEvent(eventSlug)
+        }
+    }
+
+    /**
+     * What an order position contributes to the statistics.
+     */
+    data class PositionState(
+        val eventSlug: String?,
+        /** Local ID of the item */
+        val itemId: Long?,
+        val variationServerId: Long,
+        val subEventServerId: Long,
+        val orderStatus: String?,
+        val validIfPending: Boolean,
+        /** Server IDs of the lists the position has been checked in on */
+        val entryListServerIds: Set<Long>,
+    )
+
+    private class BuiltList(
+        val serverId: Long,
+        val includePending: Boolean,
+        val subEventServerId: Long,
+        /** Local IDs of the list's items, or `null` for all items */
+        val itemIds: Set<Long>?,
+    ) {
+        fun counts(position: PositionState): Boolean {
+            val itemId = position.itemId ?: return false
+            val statusCounted = if (includePending) {
+                position.orderStatus == "p" || position.orderStatus == "n"
+            } else {
+                position.orderStatus == "p" || (position.orderStatus == "n" && position.validIfPending)
+            }
+            return statusCounted &&
+                    (subEventServerId <= 0 || position.subEventServerId == subEventServerId) &&
+                    (itemIds == null || itemIds.contains(itemId))
+        }
+    }
+
+    private data class Key(val listServerId: Long, val itemId: Long, val variationServerId: Long, val subEventServerId: Long)
+
+    /**
+     * Collects how order positions change, to update the statistics of all lists that have been
+     * built with [store], in the same transaction as the positions themselves.
+     */
+    class Changes(private val db: SyncDatabase) {
+        private val lists = HashMap<String, List<BuiltList>>()
+        private val deltas = HashMap<Key, Counts>()
+
+        fun add(position: PositionState) = change(position, 1)
+
+        fun remove(position: PositionState) = change(position, -1)
+
+        fun replace(old: PositionState, new: PositionState) {
+            if (old != new) {
+                remove(old)
+                add(new)
+            }
+        }
+
+        /**
+         * Removes all positions of the given orders, before the orders are deleted.
+         */
+        fun removeOrders(orderIds: Collection<Long>) {
+            if (orderIds.isEmpty()) {
+                return
+            }
+            val entries = HashMap<Long, MutableSet<Long>>()
+            for (row in db.checkInStatisticQueries.selectEntryCheckInsForOrders(orderIds).executeAsList()) {
+                val position = row.position ?: continue
+                val list = row.listId ?: continue
+                entries.getOrPut(position) { HashSet() }.add(list)
+            }
+            for (row in db.checkInStatisticQueries.selectPositionsForOrders(orderIds).executeAsList()) {
+                remove(PositionState(
+                    eventSlug = row.event_slug,
+                    itemId = row.item,
+                    variationServerId = row.variation_id ?: 0L,
+                    subEventServerId = row.subevent_id ?: 0L,
+                    orderStatus = row.status,
+                    validIfPending = row.valid_if_pending ?: false,
+                    entryListServerIds = entries[row.id] ?: emptySet(),
+                ))
+            }
+        }
+
+        private fun change(position: PositionState, sign: Long) {
+            val eventSlug = position.eventSlug ?: return
+            for (list in lists.getOrPut(eventSlug) { loadLists(eventSlug) }) {
+                if (!list.counts(position)) {
+                    continue
+                }
+                val key = Key(list.serverId, position.itemId!!, position.variationServerId, position.subEventServerId)
+                val counts = deltas.getOrPut(key) { Counts() }
+                counts.positions += sign
+                if (position.entryListServerIds.contains(list.serverId)) {
+                    counts.checkIns += sign
+                }
+            }
+        }
+
+        // Lists without statistics are built from scratch on first use, so they are skipped
+        private fun loadLists(eventSlug: String): List<BuiltList> {
+            val serverIds = db.checkInStatisticQueries.selectStateForEvent(eventSlug).executeAsList()
+            if (serverIds.isEmpty()) {
+                return emptyList()
+            }
+            return db.checkInListQueries.selectByServerIdListAndEventSlug(serverIds, eventSlug).executeAsList().map { list ->
+                BuiltList(
+                    serverId = list.server_id!!,
+                    includePending = list.include_pending,
+                    subEventServerId = list.subevent_id ?: 0L,
+                    itemIds = if (list.all_items) {
+                        null
+                    } else {
+                        db.checkInListQueries.selectItemIdsForList(list.id)
+                            .executeAsList()
+                            .map {
+                                // Not-null assertion needed for SQLite
+                                it.id!!
+                            }
+                            .toSet()
+                    },
+                )
+            }
+        }
+
+        /**
+         * Writes the collected changes. Should be called in the transaction that changed the
+         * positions.
+         */
+        fun store() {
+            if (deltas.isEmpty()) {
+                return
+            }
+            val eventSlugs = lists.entries.flatMap { (slug, l) -> l.map { it.serverId to slug } }.toMap()
+            val inconsistent = HashSet<Long>()
+            db.transaction {
+                for ((key, delta) in deltas) {
+                    if (delta.positions == 0L && delta.checkIns == 0L || inconsistent.contains(key.listServerId)) {
+                        continue
+                    }
+                    val current = db.checkInStatisticQueries.selectCountsForKey(
+                        list_server_id = key.listServerId,
+                        item_id = key.itemId,
+                        variation_server_id = key.variationServerId,
+                        subevent_server_id = key.subEventServerId,
+                    ).executeAsOneOrNull()
+                    val positions = (current?.position_count ?: 0L) + delta.positions
+                    val checkIns = (current?.checkin_count ?: 0L) + delta.checkIns
+                    if (positions < 0 || checkIns < 0) {
+                        // Something has been missed, start over
+                        inconsistent.add(key.listServerId)
+                    } else if (current != null) {
+                        db.checkInStatisticQueries.updateCounts(
+                            position_count = positions,
+                            checkin_count = checkIns,
+                            list_server_id = key.listServerId,
+                            item_id = key.itemId,
+                            variation_server_id = key.variationServerId,
+                            subevent_server_id = key.subEventServerId,
+                        )
+                    } else {
+                        db.checkInStatisticQueries.insert(
+                            event_slug = eventSlugs.getValue(key.listServerId),
+                            list_server_id = key.listServerId,
+                            item_id = key.itemId,
+                            variation_server_id = key.variationServerId,
+                            subevent_server_id = key.subEventServerId,
+                            position_count = positions,
+                            checkin_count = checkIns,
+                        )
+                    }
+                }
+                for (listServerId in inconsistent) {
+                    invalidateList(db, listServerId)
+                }
+            }
+            deltas.clear()
+        }
+    }
+}
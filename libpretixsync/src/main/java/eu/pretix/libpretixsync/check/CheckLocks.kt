@@ -0,0 +1,65 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.WeakHashMap
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Striped locks that serialize concurrent offline checks of the same scanned identifier, i.e. a
+ * ticket secret or a reusable medium identifier. Checking a ticket reads its previous check-ins,
+ * decides and then writes a new check-in, which must not interleave with a second check of the
+ * same ticket. Checks of different identifiers usually map to different stripes and run in
+ * parallel.
+ *
+ * The locks are shared by all check providers working on the same database. They only protect
+ * against concurrent checks within one process.
+ */
+class CheckLocks private constructor() {
+    private val stripes = Array(STRIPES) { ReentrantLock() }
+
+    private fun stripe(key: String): Int = (key.hashCode() and Int.MAX_VALUE) % STRIPES
+
+    fun <T> withLock(key: String, block: () -> T): T {
+        val lock = stripes[stripe(key)]
+        lock.lock()
+        try {
+            return block()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Runs [block] while holding the locks for all given keys. The locks are always acquired in
+     * the same order, so two callers locking overlapping sets of keys cannot deadlock.
+     */
+    fun <T> withLocks(keys: Collection<String>, block: () -> T): T {
+        val indices = keys.map { stripe(it) }.distinct().sorted()
+        var acquired = 0
+        try {
+            for (i in indices) {
+                stripes[i].lock()
+                acquired++
+            }
+            return block()
+        } finally {
+            for (j in acquired - 1 downTo 0) {
+                stripes[indices[j]].unlock()
+            }
+        }
+    }
+
+    companion object {
+        private const val STRIPES = 256
+
+        // Keyed weakly by database, see TicketSecretFilter
+        private val locks = WeakHashMap<SyncDatabase, CheckLocks>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): CheckLocks {
+            synchronized(locks) {
+                return locks.getOrPut(db) { CheckLocks() }
+            }
+        }
+    }
+}
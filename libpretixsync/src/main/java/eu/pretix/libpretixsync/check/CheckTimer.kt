@@ -0,0 +1,25 @@
+package eu.pretix.libpretixsync.check
+
+/**
+ * Collects the stage timings of a single check. Only used by the thread performing the check.
+ */
+internal class CheckTimer {
+    private val start = System.nanoTime()
+    private val stages = LongArray(CheckStage.values().size) { -1L }
+
+    fun add(stage: CheckStage, nanos: Long) {
+        val i = stage.ordinal
+        stages[i] = if (stages[i] < 0) nanos else stages[i] + nanos
+    }
+
+    fun finish(result: TicketCheckProvider.CheckResult): CheckTimings {
+        val total = System.nanoTime() - start
+        val map = mutableMapOf<CheckStage, Long>()
+        for (stage in CheckStage.values()) {
+            if (stages[stage.ordinal] >= 0) {
+                map[stage] = stages[stage.ordinal]
+            }
+        }
+        return CheckTimings(result.type, result.offline, total, map)
+    }
+}
@@ -0,0 +1,134 @@
+package eu.pretix.libpretixsync.check
+
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * [CheckTimingListener] that aggregates check timings into histograms, one per [CheckStage] plus
+ * one for the whole check, and counts the result types. Recording is lock-free, so it can be used
+ * on the scanning hot path.
+ *
+ * Durations are sorted into logarithmic buckets with eight sub-buckets per power of two, so
+ * percentiles are accurate to about 12.5%.
+ */
+class CheckTimingHistogram : CheckTimingListener {
+    data class Statistics(
+        val count: Long,
+        val p50Nanos: Long,
+        val p95Nanos: Long,
+        val p99Nanos: Long,
+        val maxNanos: Long,
+    )
+
+    data class Snapshot(
+        val total: Statistics,
+        val stages: Map<CheckStage, Statistics>,
+        val resultTypes: Map<TicketCheckProvider.CheckResult.Type, Long>,
+    )
+
+    private class Histogram {
+        val buckets = AtomicLongArray(BUCKETS)
+
+        fun record(nanos: Long) {
+            buckets.incrementAndGet(bucketFor(nanos))
+        }
+
+        fun statistics(): Statistics {
+            val counts = LongArray(BUCKETS) { buckets.get(it) }
+            val count = counts.sum()
+            var max = 0L
+            for (i in BUCKETS - 1 downTo 0) {
+                if (counts[i] > 0) {
+                    max = upperBound(i)
+                    break
+                }
+            }
+            return Statistics(count, percentile(counts, count, 0.50), percentile(counts, count, 0.95), percentile(counts, count, 0.99), max)
+        }
+
+        private fun percentile(counts: LongArray, count: Long, p: Double): Long {
+            if (count == 0L) {
+                return 0L
+            }
+            val rank = Math.ceil(p * count).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (i in 0 until BUCKETS) {
+                seen += counts[i]
+                if (seen >= rank) {
+                    return upperBound(i)
+                }
+            }
+            return upperBound(BUCKETS - 1)
+        }
+    }
+
+    private class Recorder {
+        val total = Histogram()
+        val stages = Array(CheckStage.values().size) { Histogram() }
+        val resultTypes = AtomicLongArray(TicketCheckProvider.CheckResult.Type.values().size)
+    }
+
+    private val recorder = AtomicReference(Recorder())
+
+    override fun onCheckTimings(timings: CheckTimings) {
+        val r = recorder.get()
+        r.total.record(timings.totalNanos)
+        for ((stage, nanos) in timings.stages) {
+            r.stages[stage.ordinal].record(nanos)
+        }
+        timings.resultType?.let { r.resultTypes.incrementAndGet(it.ordinal) }
+    }
+
+    fun snapshot(): Snapshot {
+        val r = recorder.get()
+        val stages = mutableMapOf<CheckStage, Statistics>()
+        for (stage in CheckStage.values()) {
+            val s = r.stages[stage.ordinal].statistics()
+            if (s.count > 0) {
+                stages[stage] = s
+            }
+        }
+        val resultTypes = mutableMapOf<TicketCheckProvider.CheckResult.Type, Long>()
+        for (type in TicketCheckProvider.CheckResult.Type.values()) {
+            val c = r.resultTypes.get(type.ordinal)
+            if (c > 0) {
+                resultTypes[type] = c
+            }
+        }
+        return Snapshot(r.total.statistics(), stages, resultTypes)
+    }
+
+    /**
+     * Starts over with empty histograms. Checks that are being recorded concurrently might still
+     * end up in the old histograms.
+     */
+    fun reset() {
+        recorder.set(Recorder())
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+        private fun bucketFor(value: Long): Int {
+            val v = value.coerceAtLeast(0)
+            if (v < SUB_BUCKETS) {
+                return v.toInt()
+            }
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(v)
+            val sub = (v ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub
+        }
+
+        private fun upperBound(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) {
+                return bucket.toLong()
+            }
+            val exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+            val sub = (bucket % SUB_BUCKETS).toLong()
+            val width = 1L shl (exponent - SUB_BUCKET_BITS)
+            return ((SUB_BUCKETS + sub) shl (exponent - SUB_BUCKET_BITS)) + width - 1
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package eu.pretix.libpretixsync.check
+
+/**
+ * Stages of a ticket check that are timed individually. Not every check passes every stage, e.g.
+ * only offline checks of signed tickets involve [SIGNATURE] and only online checks [REQUEST].
+ */
+enum class CheckStage {
+    /** Decoding of the scanned data, e.g. Base64 and protobuf parsing of signed tickets */
+    DECODE,
+
+    /** Verification of the signature of signed tickets */
+    SIGNATURE,
+
+    /** Lookup of order positions or reusable media matching the scanned data */
+    POSITION_LOOKUP,
+
+    /** Selection of the relevant order position, including add-on matching */
+    FILTER_POSITIONS,
+
+    /** Evaluation of the custom check-in rules of the check-in list */
+    RULES,
+
+    /** Writing check-ins or failed check-ins to the database */
+    STORE,
+
+    /** Round trip to the server */
+    REQUEST,
+}
+
+/**
+ * Timings of a single ticket check. All durations are in nanoseconds. Stages that were not passed
+ * are not contained in [stages].
+ */
+class CheckTimings(
+    val resultType: TicketCheckProvider.CheckResult.Type?,
+    val offline: Boolean,
+    val totalNanos: Long,
+    val stages: Map<CheckStage, Long>,
+)
+
+/**
+ * Receives the timings of every check performed by a [TicketCheckProvider], see
+ * [TicketCheckProvider.setTimingListener]. Called on the thread that performed the check, so
+ * implementations should return quickly.
+ */
+interface CheckTimingListener {
+    fun onCheckTimings(timings: CheckTimings)
+}
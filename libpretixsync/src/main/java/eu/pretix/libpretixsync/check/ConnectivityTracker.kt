@@ -0,0 +1,118 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sync.SyncManager
+
+/**
+ * Tracks the round-trip times of requests to the server to adapt [OnlineCheckProvider] to the
+ * network at hand.
+ *
+ * The timeout of a redeem request is derived from the recent latencies instead of being fixed,
+ * and the provider switches to checking offline first if the server is slow or unreachable, e.g.
+ * on bad venue Wi-Fi. To avoid flapping between both modes, the provider only returns to online
+ * checks after [successesToOnline] requests in a row were fast again, with a lower limit
+ * ([recoveredMillis]) than the one that made it switch ([slowMillis]).
+ *
+ * Can also be passed to [SyncManager] to take the latencies of the sync into account.
+ */
+class ConnectivityTracker(
+    private val minTimeoutMillis: Long = 1500,
+    private val slowMillis: Long = 2500,
+    private val recoveredMillis: Long = 1000,
+    private val errorsToOffline: Int = 3,
+    private val successesToOnline: Int = 3,
+) : SyncManager.CheckConnectivityFeedback {
+    class Statistics(
+        val offlineFirst: Boolean,
+        val ewmaMillis: Double?,
+        val p50Millis: Long?,
+        val p95Millis: Long?,
+        val errors: Long,
+    )
+
+    private val latencies = LatencyWindow(LATENCY_SAMPLES)
+    private var ewma: Double? = null
+    private var samples = 0
+    private var consecutiveErrors = 0
+    private var consecutiveSuccesses = 0
+    private var errors = 0L
+    private var lastProbe = 0L
+
+    @get:Synchronized
+    var isOfflineFirst = false
+        private set
+
+    @Synchronized
+    override fun recordSuccess(durationInMillis: Long?) {
+        val millis = durationInMillis ?: return
+        latencies.record(millis)
+        ewma = ewma?.let { it + EWMA_ALPHA * (millis - it) } ?: millis.toDouble()
+        samples++
+        consecutiveErrors = 0
+        consecutiveSuccesses = if (millis <= recoveredMillis) consecutiveSuccesses + 1 else 0
+        updateMode()
+    }
+
+    @Synchronized
+    override fun recordError() {
+        errors++
+        consecutiveErrors++
+        consecutiveSuccesses = 0
+        updateMode()
+    }
+
+    private fun updateMode() {
+        val ewma = ewma
+        if (isOfflineFirst) {
+            if (consecutiveSuccesses >= successesToOnline && ewma != null && ewma <= recoveredMillis) {
+                isOfflineFirst = false
+            }
+        } else {
+            if (consecutiveErrors >= errorsToOffline || (samples >= LATENCY_MIN_SAMPLES && ewma != null && ewma > slowMillis)) {
+                isOfflineFirst = true
+            }
+        }
+    }
+
+    /**
+     * Returns the timeout for a redeem request, a multiple of the 95th percentile of the recent
+     * latencies, but at most [maxMillis].
+     */
+    fun callTimeout(maxMillis: Long): Long {
+        val p95 = latencies.percentile(0.95, LATENCY_MIN_SAMPLES) ?: return maxMillis
+        return (p95 * TIMEOUT_FACTOR).coerceIn(minTimeoutMillis.coerceAtMost(maxMillis), maxMillis)
+    }
+
+    /**
+     * Returns `true` at most once per [PROBE_INTERVAL_MS] while offline first, to check in the
+     * background whether the server is reachable again.
+     */
+    @Synchronized
+    fun shouldProbe(): Boolean {
+        if (!isOfflineFirst) {
+            return false
+        }
+        val now = System.currentTimeMillis()
+        if (now - lastProbe < PROBE_INTERVAL_MS) {
+            return false
+        }
+        lastProbe = now
+        return true
+    }
+
+    @Synchronized
+    fun statistics(): Statistics = Statistics(
+        isOfflineFirst,
+        ewma,
+        latencies.percentile(0.5, 1),
+        latencies.percentile(0.95, 1),
+        errors,
+    )
+
+    companion object {
+        private const val LATENCY_SAMPLES = 100
+        private const val LATENCY_MIN_SAMPLES = 10
+        private const val EWMA_ALPHA = 0.2
+        private const val TIMEOUT_FACTOR = 3
+        private const val PROBE_INTERVAL_MS = 10_000L
+    }
+}
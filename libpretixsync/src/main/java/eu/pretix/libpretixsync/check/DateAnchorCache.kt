@@ -0,0 +1,105 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import org.joda.time.DateTime
+import org.joda.time.format.ISODateTimeFormat
+import org.json.JSONObject
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Dates of an event or sub-event that check-in rules can refer to through `buildTime`.
+ *
+ * The dates are taken from the raw JSON data, which should be less risky than converting back and
+ * forth between java.time and Joda. Each date is only parsed on first use. If parsing fails, the
+ * exception is thrown on every use, just like if the date was parsed every time.
+ */
+class DateAnchors internal constructor(json: JSONObject) {
+    private val dateFromRaw = json.optString("date_from", null)
+    private val dateToRaw = json.optString("date_to")
+    private val dateAdmissionRaw = json.optString("date_admission")
+
+    val dateFrom: DateTime by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        ISODateTimeFormat.dateTimeParser().parseDateTime(
+            dateFromRaw ?: throw IllegalStateException("date_from not set")
+        )
+    }
+
+    val dateTo: DateTime by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        ISODateTimeFormat.dateTimeParser().parseDateTime(dateToRaw)
+    }
+
+    val dateAdmission: DateTime by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        ISODateTimeFormat.dateTimeParser().parseDateTime(dateAdmissionRaw)
+    }
+}
+
+/**
+ * Holds the [DateAnchors] of the events and sub-events of a database, so that rule evaluation
+ * does not need to read and parse the event data on every scan.
+ *
+ * [eu.pretix.libpretixsync.sync.EventSyncAdapter], [eu.pretix.libpretixsync.sync.SubEventSyncAdapter]
+ * and [eu.pretix.libpretixsync.sync.AllSubEventsSyncAdapter] call [invalidate] whenever they write
+ * data, see [CheckContextCache] for why this also happens after their transaction is committed.
+ */
+class DateAnchorCache private constructor() {
+    private val anchors = ConcurrentHashMap<Pair<String, Long>, DateAnchors>()
+    private val version = AtomicLong(0)
+
+    /**
+     * Returns the anchors of the given sub-event of the event, or of the event itself if
+     * [subeventId] is `0`.
+     */
+    fun get(db: SyncDatabase, eventSlug: String, subeventId: Long): DateAnchors {
+        return getOrNull(db, eventSlug, subeventId)
+            ?: throw IllegalStateException("Event $eventSlug or sub-event $subeventId not found")
+    }
+
+    /**
+     * Like [get], but returns `null` if the event or sub-event is not in the database.
+     */
+    fun getOrNull(db: SyncDatabase, eventSlug: String, subeventId: Long): DateAnchors? {
+        val key = Pair(eventSlug, subeventId)
+        anchors[key]?.let { return it }
+
+        val v = version.get()
+        val jsonData = if (subeventId != 0L) {
+            db.subEventQueries.selectByServerIdAndSlug(
+                server_id = subeventId,
+                event_slug = eventSlug,
+            ).executeAsOneOrNull()?.json_data
+        } else {
+            db.eventQueries.selectBySlug(eventSlug).executeAsOneOrNull()?.json_data
+        } ?: return null
+        val result = DateAnchors(JSONObject(jsonData))
+        anchors[key] = result
+        if (version.get() != v) {
+            // Data changed while we were loading, don't keep a possibly outdated snapshot around
+            anchors.remove(key, result)
+        }
+        return result
+    }
+
+    fun invalidate(eventSlug: String) {
+        version.incrementAndGet()
+        anchors.keys.removeAll { it.first == eventSlug }
+    }
+
+    fun invalidateAll() {
+        version.incrementAndGet()
+        anchors.clear()
+    }
+
+    companion object {
+        // Keyed weakly by database, see TicketSecretFilter
+        private val caches = WeakHashMap<SyncDatabase, DateAnchorCache>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): DateAnchorCache {
+            synchronized(caches) {
+                return caches.getOrPut(db) { DateAnchorCache() }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package eu.pretix.libpretixsync.check
+
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+import org.joda.time.LocalDate
+
+/**
+ * The entries of a ticket on a check-in list, prepared for the history-based variables and
+ * operations of check-in rules.
+ *
+ * Entry times are kept as a sorted array, so the `entries_since` and `entries_before` family of
+ * operations can be answered by binary search. Local days are computed once, in the event's
+ * time zone, and only if a rule asks for days.
+ */
+internal class EntryHistory(entryTimes: List<DateTime>, private val now: DateTime, private val tz: DateTimeZone) {
+    private val millis: LongArray = LongArray(entryTimes.size) { entryTimes[it].millis }.apply { sort() }
+
+    // distinctDays[i] is the number of distinct local days among the first i entries. As entries
+    // are sorted, entries of the same day are next to each other.
+    private val distinctDays: IntArray by lazy(LazyThreadSafetyMode.NONE) {
+        val result = IntArray(millis.size + 1)
+        var previous: LocalDate? = null
+        for (i in millis.indices) {
+            val day = DateTime(millis[i], tz).toLocalDate()
+            result[i + 1] = result[i] + if (day != previous) 1 else 0
+            previous = day
+        }
+        result
+    }
+
+    val count: Int
+        get() = millis.size
+
+    val countToday: Int
+        get() {
+            val today = now.withZone(tz).toLocalDate()
+            val start = today.toDateTimeAtStartOfDay(tz).millis
+            val end = today.plusDays(1).toDateTimeAtStartOfDay(tz).millis
+            return firstIndexAtOrAfter(end) - firstIndexAtOrAfter(start)
+        }
+
+    val days: Int
+        get() = distinctDays[millis.size]
+
+    /** Minutes since the last entry, or -1 if there is none */
+    val minutesSinceLast: Int
+        get() = if (millis.isEmpty()) -1 else minutesSince(millis.last())
+
+    /** Minutes since the first entry, or -1 if there is none */
+    val minutesSinceFirst: Int
+        get() = if (millis.isEmpty()) -1 else minutesSince(millis.first())
+
+    /** Number of entries at or after [cutoff] */
+    fun countSince(cutoff: DateTime): Int = millis.size - firstIndexAtOrAfter(cutoff.millis)
+
+    /** Number of entries before [cutoff] */
+    fun countBefore(cutoff: DateTime): Int = firstIndexAtOrAfter(cutoff.millis)
+
+    /** Number of distinct days with entries at or after [cutoff] */
+    fun daysSince(cutoff: DateTime): Int = daysBetween(firstIndexAtOrAfter(cutoff.millis), millis.size)
+
+    /** Number of distinct days with entries before [cutoff] */
+    fun daysBefore(cutoff: DateTime): Int = daysBetween(0, firstIndexAtOrAfter(cutoff.millis))
+
+    // Number of distinct days among the entries from index `from` (inclusive) to `to` (exclusive)
+    private fun daysBetween(from: Int, to: Int): Int {
+        if (from >= to) {
+            return 0
+        }
+        // The first entry always starts a day of its own within the range
+        return 1 + distinctDays[to] - distinctDays[from + 1]
+    }
+
+    private fun minutesSince(time: Long): Int = ((now.millis - time) / 60_000L).toInt()
+
+    private fun firstIndexAtOrAfter(time: Long): Int {
+        var low = 0
+        var high = millis.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (millis[mid] < time) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+}
@@ -0,0 +1,118 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.SentryInterface
+import eu.pretix.libpretixsync.db.NonceGenerator
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.WeakHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Write-behind buffer for failed scans of the offline check. Entries are collected in memory and
+ * written to the QueuedCall table in one transaction once [FLUSH_SIZE] entries have accumulated,
+ * or [flushDelayMillis] after the first entry, from where [eu.pretix.libpretixsync.sync.SyncManager]
+ * uploads them. If writing fails, the entries are kept and the write is retried later.
+ *
+ * Failed scans are only informational for the backend, so we accept losing the last few of them
+ * if the process dies, in exchange for not writing to the database on every rejected scan.
+ */
+class FailedCheckinLog private constructor() {
+    private class Entry(val url: String, val body: String, val idempotencyKey: String)
+
+    private val buffer = ArrayList<Entry>()
+    private var flushScheduled = false
+
+    /**
+     * Time between the first buffered entry and the write, [FLUSH_DELAY_MS] unless changed.
+     */
+    @Volatile
+    var flushDelayMillis = FLUSH_DELAY_MS
+
+    fun record(db: SyncDatabase, url: String, body: String, sentry: SentryInterface) {
+        val entry = Entry(url, body, NonceGenerator.nextNonce())
+        val flushNow: Boolean
+        synchronized(buffer) {
+            buffer.add(entry)
+            flushNow = buffer.size >= FLUSH_SIZE
+            if (!flushNow) {
+                scheduleFlush(db, sentry)
+            }
+        }
+        if (flushNow) {
+            flushOrRetryLater(db, sentry)
+        }
+    }
+
+    private fun scheduleFlush(db: SyncDatabase, sentry: SentryInterface) {
+        synchronized(buffer) {
+            if (!flushScheduled) {
+                flushScheduled = true
+                // The scheduled task only holds on to the database until it has run
+                scheduler.schedule({ flushOrRetryLater(db, sentry) }, flushDelayMillis, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    private fun flushOrRetryLater(db: SyncDatabase, sentry: SentryInterface) {
+        try {
+            flush(db)
+        } catch (e: Exception) {
+            // The entries are still buffered, try again later
+            sentry.captureException(e, "Failed to store failed check-ins")
+            scheduleFlush(db, sentry)
+        }
+    }
+
+    /**
+     * Writes all buffered entries to the database. Called by the sync before queued calls are
+     * uploaded. If writing fails, the entries stay in the buffer and the exception is thrown.
+     */
+    fun flush(db: SyncDatabase) {
+        val entries: List<Entry>
+        synchronized(buffer) {
+            flushScheduled = false
+            if (buffer.isEmpty()) {
+                return
+            }
+            entries = ArrayList(buffer)
+            buffer.clear()
+        }
+        try {
+            db.queuedCallQueries.transaction {
+                for (e in entries) {
+                    db.queuedCallQueries.insert(
+                        body = e.body,
+                        idempotency_key = e.idempotencyKey,
+                        url = e.url,
+                    )
+                }
+            }
+        } catch (e: Exception) {
+            synchronized(buffer) {
+                buffer.addAll(0, entries)
+            }
+            throw e
+        }
+    }
+
+    companion object {
+        const val FLUSH_SIZE = 20
+        const val FLUSH_DELAY_MS = 2000L
+
+        private val scheduler = Executors.newSingleThreadScheduledExecutor { r ->
+            val t = Thread(r, "FailedCheckinLog")
+            t.isDaemon = true
+            t
+        }
+
+        // Keyed weakly by database, see TicketSecretFilter
+        private val logs = WeakHashMap<SyncDatabase, FailedCheckinLog>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): FailedCheckinLog {
+            synchronized(logs) {
+                return logs.getOrPut(db) { FailedCheckinLog() }
+            }
+        }
+    }
+}
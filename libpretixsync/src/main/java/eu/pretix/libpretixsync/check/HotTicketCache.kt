@@ -0,0 +1,142 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import eu.pretix.libpretixsync.models.OrderPosition as OrderPositionModel
+import java.util.WeakHashMap
+
+/**
+ * Bounded LRU cache of the order positions found for a secret, used by the offline check. At
+ * entry and exit lanes, the same tickets are scanned again and again, e.g. on re-entry or when a
+ * scan is repeated, so the position lookup can mostly be skipped.
+ *
+ * Only the positions themselves are cached. Everything that changes through a check (check-ins,
+ * failed check-ins) and the order status are still read from the database on every check, so
+ * local check-ins do not need to invalidate anything here.
+ *
+ * [eu.pretix.libpretixsync.sync.OrderSyncAdapter] calls [invalidate] for the secrets of every
+ * order it writes, and once more after its transaction has been committed, see [CheckContextCache].
+ */
+class HotTicketCache private constructor() {
+    class Stats(val hits: Long, val misses: Long, val size: Int, val capacity: Int) {
+        val hitRate: Double
+            get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+    }
+
+    private class Entry(val eventSlugs: Set<String>, val positions: List<OrderPositionModel>)
+
+    private val entries = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean =
+            size > capacity
+    }
+    private var version = 0L
+    private var hits = 0L
+    private var misses = 0L
+
+    var capacity = DEFAULT_CAPACITY
+        @Synchronized set(value) {
+            field = value
+            val it = entries.entries.iterator()
+            while (entries.size > value && it.hasNext()) {
+                it.next()
+                it.remove()
+            }
+        }
+
+    /**
+     * Returns the positions with the given secret in the given events, or calls [load] to look
+     * them up if they are not cached.
+     */
+    fun get(secret: String, eventSlugs: Collection<String>, load: () -> List<OrderPositionModel>): List<OrderPositionModel> {
+        val slugs = eventSlugs.toSet()
+        val v = synchronized(this) {
+            val entry = entries[secret]
+            if (entry != null && entry.eventSlugs == slugs) {
+                hits++
+                return entry.positions
+            }
+            misses++
+            version
+        }
+        val positions = load()
+        put(v, secret, slugs, positions)
+        return positions
+    }
+
+    /**
+     * Returns the cached positions for all given secrets which are cached for the given events.
+     * Secrets that are not in the result are counted as misses and should be passed to [putAll]
+     * once they have been looked up.
+     */
+    @Synchronized
+    fun getAll(secrets: Collection<String>, eventSlugs: Collection<String>): Pair<Map<String, List<OrderPositionModel>>, Long> {
+        val slugs = eventSlugs.toSet()
+        val result = HashMap<String, List<OrderPositionModel>>()
+        for (secret in secrets) {
+            val entry = entries[secret]
+            if (entry != null && entry.eventSlugs == slugs) {
+                hits++
+                result[secret] = entry.positions
+            } else {
+                misses++
+            }
+        }
+        return Pair(result, version)
+    }
+
+    /**
+     * Stores positions that were looked up after [getAll] returned version [v].
+     */
+    @Synchronized
+    fun putAll(v: Long, eventSlugs: Collection<String>, positions: Map<String, List<OrderPositionModel>>) {
+        val slugs = eventSlugs.toSet()
+        for ((secret, p) in positions) {
+            put(v, secret, slugs, p)
+        }
+    }
+
+    @Synchronized
+    private fun put(v: Long, secret: String, eventSlugs: Set<String>, positions: List<OrderPositionModel>) {
+        if (version != v) {
+            // Data changed while we were loading, don't keep a possibly outdated result around
+            return
+        }
+        entries[secret] = Entry(eventSlugs, positions)
+    }
+
+    @Synchronized
+    fun invalidate(secrets: Collection<String>) {
+        version++
+        for (secret in secrets) {
+            entries.remove(secret)
+        }
+    }
+
+    @Synchronized
+    fun invalidateAll() {
+        version++
+        entries.clear()
+    }
+
+    @Synchronized
+    fun stats(): Stats = Stats(hits, misses, entries.size, capacity)
+
+    @Synchronized
+    fun resetStats() {
+        hits = 0
+        misses = 0
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 2000
+
+        // Keyed weakly by database, see TicketSecretFilter
+        private val caches = WeakHashMap<SyncDatabase, HotTicketCache>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): HotTicketCache {
+            synchronized(caches) {
+                return caches.getOrPut(db) { HotTicketCache() }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package eu.pretix.libpretixsync.check
+
+/**
+ * The most recent [size] latencies of a request, to derive adaptive timeouts from them.
+ */
+internal class LatencyWindow(private val size: Int) {
+    private val samples = LongArray(size)
+    private var count = 0
+    private var next = 0
+
+    @Synchronized
+    fun record(millis: Long) {
+        samples[next] = millis
+        next = (next + 1) % size
+        if (count < size) {
+            count++
+        }
+    }
+
+    /**
+     * Returns the given percentile of the recorded latencies, or `null` if less than [minSamples]
+     * latencies have been recorded.
+     */
+    @Synchronized
+    fun percentile(p: Double, minSamples: Int): Long? {
+        if (count == 0 || count < minSamples) {
+            return null
+        }
+        val sorted = samples.copyOf(count).apply { sort() }
+        val rank = Math.ceil(p * count).toInt().coerceIn(1, count)
+        return sorted[rank - 1]
+    }
+}
@@ -3,6 +3,7 @@ package eu.pretix.libpretixsync.check
 import eu.pretix.libpretixsync.DummySentryImplementation
 import eu.pretix.libpretixsync.SentryInterface
 import eu.pretix.libpretixsync.api.ApiException
+import eu.pretix.libpretixsync.api.ConnectionKeepWarm
 import eu.pretix.libpretixsync.api.HttpClientFactory
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.api.TimeoutApiException
@@ -20,26 +21,63 @@ import eu.pretix.libpretixsync.utils.cleanInput
 import org.joda.time.format.ISODateTimeFormat
 import org.json.JSONException
 import org.json.JSONObject
+import java.io.IOException
 import java.lang.Exception
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
+/**
+ * Checks tickets on the server. If a [fallback] is set, scans are handed to it if the server
+ * does not answer within [fallbackTimeout] milliseconds.
+ *
+ * If [hedgeDeadline] is set as well, checks are hedged instead: the fallback evaluates the scan in
+ * parallel once the server takes longer than usual, and takes over if the server has not answered
+ * after [hedgeDeadline] milliseconds, while the request to the server keeps running for up to
+ * [fallbackTimeout]. If the server still answers and decided differently than the fallback, this
+ * is reported to sentry. See [redeemHedged].
+ *
+ * If a [connectivity] tracker is set, the timeout of requests adapts to the recent latencies, and
+ * scans are handed to the fallback right away while the tracker considers the server to be slow
+ * or unreachable. See [ConnectivityTracker].
+ */
 class OnlineCheckProvider(
     private val config: ConfigStore,
     httpClientFactory: HttpClientFactory?,
     private val db: SyncDatabase,
     private val fileStore: FileStorage,
     private val fallback: TicketCheckProvider? = null,
-    private val fallbackTimeout: Int = 30000
+    private val fallbackTimeout: Int = 30000,
+    private val hedgeDeadline: Int? = null,
+    private val connectivity: ConnectivityTracker? = null,
 ) : TicketCheckProvider {
     private var sentry: SentryInterface = DummySentryImplementation()
+    @Volatile private var timingListener: CheckTimingListener? = null
     private val api = PretixApi.fromConfig(config, httpClientFactory)
     private val parser = ISODateTimeFormat.dateTimeParser()
 
+    private val latencies = LatencyWindow(LATENCY_SAMPLES)
+
     override fun setSentry(sentry: SentryInterface) {
         this.sentry = sentry
         api.sentry = sentry
     }
 
+    override fun setTimingListener(listener: CheckTimingListener?) {
+        this.timingListener = listener
+    }
+
+    /**
+     * Creates a [ConnectionKeepWarm] for the connections used by this provider.
+     */
+    fun createKeepWarm(intervalMillis: Long = ConnectionKeepWarm.DEFAULT_INTERVAL_MS): ConnectionKeepWarm {
+        return ConnectionKeepWarm(api, intervalMillis)
+    }
+
     override fun check(
         eventsAndCheckinLists: Map<String, Long>,
         ticketid: String,
@@ -57,45 +95,85 @@ class OnlineCheckProvider(
         val ticketid_cleaned = cleanInput(ticketid, source_type)
         val nonce_cleaned = nonce ?: NonceGenerator.nextNonce()
 
+        if (fallback != null && isOfflineFirst() && exchange_medium_type == null && exchange_medium_identifier == null) {
+            sentry.addBreadcrumb("provider.check", "server considered unreachable, checking offline")
+            return fallback.check(
+                eventsAndCheckinLists,
+                ticketid_cleaned,
+                source_type,
+                answers,
+                ignore_unpaid,
+                with_badge_data,
+                type,
+                nonce_cleaned
+            )
+        }
+
         sentry.addBreadcrumb("provider.check", "started")
-        return try {
+        val listener = timingListener
+        val timer = if (listener != null) CheckTimer() else null
+        val callTimeout = if (fallback == null) {
+            null
+        } else if (connectivity != null && hedgeDeadline == null) {
+            connectivity.callTimeout(fallbackTimeout.toLong())
+        } else {
+            // Hedged requests keep running after the fallback took over
+            fallbackTimeout.toLong()
+        }
+        val result = try {
             val res = TicketCheckProvider.CheckResult(TicketCheckProvider.CheckResult.Type.ERROR)
             res.scanType = type
-            val responseObj = if (config.knownPretixVersion >= 40120001001) { // >= 4.12.0.dev1
-                api.redeem(
-                    eventsAndCheckinLists.values.toList(),
-                    ticketid_cleaned,
-                    null as String?,
-                    false,
-                    nonce_cleaned,
-                    answers,
-                    ignore_unpaid,
-                    with_badge_data,
-                    type.toString().lowercase(Locale.getDefault()),
-                    source_type,
-                    callTimeout = if (fallback != null) fallbackTimeout.toLong() else null,
-                    questions_supported = allowQuestions,
-                    use_order_locale = useOrderLocale,
-                    exchange_medium_type = exchange_medium_type,
-                    exchange_medium_identifier = exchange_medium_identifier,
-                )
-            } else {
-                if (eventsAndCheckinLists.size != 1) throw CheckException("Multi-event scan not supported by server.")
-                api.redeem(
-                    eventsAndCheckinLists.keys.first(),
-                    ticketid_cleaned,
-                    null as String?,
-                    false,
-                    nonce_cleaned,
-                    answers,
-                    eventsAndCheckinLists.values.first(),
-                    ignore_unpaid,
-                    with_badge_data,
-                    type.toString().lowercase(Locale.getDefault()),
-                    source_type,
-                    callTimeout = if (fallback != null) fallbackTimeout.toLong() else null,
-                    questions_supported = allowQuestions,
-                )
+            val requestStart = System.nanoTime()
+            val request = {
+                api.interactive {
+                    if (config.knownPretixVersion >= 40120001001) { // >= 4.12.0.dev1
+                        api.redeem(
+                            eventsAndCheckinLists.values.toList(),
+                            ticketid_cleaned,
+                            null as String?,
+                            false,
+                            nonce_cleaned,
+                            answers,
+                            ignore_unpaid,
+                            with_badge_data,
+                            type.toString().lowercase(Locale.getDefault()),
+                            source_type,
+                            callTimeout = callTimeout,
+                            questions_supported = allowQuestions,
+                            use_order_locale = useOrderLocale,
+                            exchange_medium_type = exchange_medium_type,
+                            exchange_medium_identifier = exchange_medium_identifier,
+                        )
+                    } else {
+                        if (eventsAndCheckinLists.size != 1) throw CheckException("Multi-event scan not supported by server.")
+                        api.redeem(
+                            eventsAndCheckinLists.keys.first(),
+                            ticketid_cleaned,
+                            null as String?,
+                            false,
+                            nonce_cleaned,
+                            answers,
+                            eventsAndCheckinLists.values.first(),
+                            ignore_unpaid,
+                            with_badge_data,
+                            type.toString().lowercase(Locale.getDefault()),
+                            source_type,
+                            callTimeout = callTimeout,
+                            questions_supported = allowQuestions,
+                        )
+                    }
+                }
+            }
+            val responseObj = try {
+                if (fallback != null && hedgeDeadline != null) {
+                    redeemHedged(hedgeDeadline.toLong(), { recordRoundTrip(request) }) {
+                        fallback.evaluate(eventsAndCheckinLists, ticketid_cleaned, source_type, answers, ignore_unpaid, type, allowQuestions)
+                    }
+                } else {
+                    recordRoundTrip(request)
+                }
+            } finally {
+                timer?.add(CheckStage.REQUEST, System.nanoTime() - requestStart)
             }
             if (responseObj.response.code == 404) {
                 res.type = TicketCheckProvider.CheckResult.Type.INVALID
@@ -326,7 +404,7 @@ class OnlineCheckProvider(
                       happen in any situation where the request reached the server but the response did
                       not reach the scanner, but it becomes a more likely situation with a lower timeout.
                  */
-                fallback.check(
+                val offline = fallback.check(
                     eventsAndCheckinLists,
                     ticketid_cleaned,
                     source_type,
@@ -336,6 +414,10 @@ class OnlineCheckProvider(
                     type,
                     nonce_cleaned
                 )
+                if (e is HedgeDeadlineException) {
+                    reportLateResponse(e.pending, offline)
+                }
+                offline
             } else {
                 sentry.addBreadcrumb("provider.check", "API Error: " + e.message)
                 val cr = TicketCheckProvider.CheckResult(
@@ -346,21 +428,208 @@ class OnlineCheckProvider(
                 cr
             }
         }
+        if (listener != null && timer != null) {
+            listener.onCheckTimings(timer.finish(result))
+        }
+        return result
+    }
+
+    /**
+     * Runs [request] in the background and waits for it until [deadline]. If the server has not
+     * answered after the usual latency (the 95th percentile of the recent requests), [speculate]
+     * is called to evaluate the scan with the fallback in the meantime, which makes sure that
+     * everything the fallback needs is loaded once it has to take over.
+     *
+     * If the server has not answered by [deadline], a [HedgeDeadlineException] is thrown, so the
+     * scan is handed to the fallback with the same nonce, as for a regular timeout. Unlike a
+     * regular timeout, the request keeps running for up to `fallbackTimeout`. If it still reaches
+     * the server, the server ignores the later upload of the fallback's check-in with the same
+     * nonce, so only one redemption is recorded. A late response is compared to the fallback's
+     * result by [reportLateResponse].
+     *
+     * The fallback then runs the full check again instead of reusing the speculative result. Only
+     * the check itself holds the lock of the ticket, so only it sees check-ins stored in the
+     * meantime, e.g. by a second scanner thread. As the speculation loaded everything the check
+     * needs, the second run is fast.
+     */
+    private fun redeemHedged(deadline: Long, request: () -> PretixApi.ApiResponse, speculate: () -> Unit): PretixApi.ApiResponse {
+        val start = System.nanoTime()
+        val future = executor.submit(Callable {
+            try {
+                request()
+            } finally {
+                latencies.record((System.nanoTime() - start) / 1_000_000)
+            }
+        })
+        val threshold = (latencies.percentile(0.95, LATENCY_MIN_SAMPLES) ?: (deadline / 2)).coerceIn(0, deadline)
+        try {
+            return awaitResponse(future, threshold)
+        } catch (e: TimeoutException) {
+            // The server is slower than usual, get the fallback ready
+        }
+
+        try {
+            speculate()
+        } catch (e: Exception) {
+            sentry.captureException(e)
+        }
+
+        val remaining = deadline - (System.nanoTime() - start) / 1_000_000
+        try {
+            return awaitResponse(future, remaining.coerceAtLeast(0))
+        } catch (e: TimeoutException) {
+            sentry.addBreadcrumb("provider.check", "hedged request passed the deadline")
+            throw HedgeDeadlineException("Server did not respond within $deadline ms", future)
+        }
+    }
+
+    /**
+     * Thrown by [redeemHedged] if the server did not answer by the deadline, with the request that
+     * keeps running in the background.
+     */
+    private class HedgeDeadlineException(
+        message: String,
+        val pending: Future<PretixApi.ApiResponse>,
+    ) : TimeoutApiException(message)
+
+    /**
+     * Waits in the background for the response to a request that passed the hedge deadline and
+     * reports it to sentry if the server and the fallback disagree on whether the scan is
+     * accepted. Nothing is changed locally: if the server accepted the ticket, the fallback's
+     * check-in is ignored by the server when it is uploaded with the same nonce. If the server
+     * rejected it while the fallback accepted it, the person has already been let in. Either
+     * way, the scan has been decided, see the comment on the fallback in [check].
+     */
+    private fun reportLateResponse(pending: Future<PretixApi.ApiResponse>, offline: TicketCheckProvider.CheckResult) {
+        executor.execute {
+            val response = try {
+                pending.get()
+            } catch (e: Exception) {
+                // The server did not answer at all, so there is nothing to compare
+                return@execute
+            }
+            val onlineAccepted = response.response.code in 200..299 && response.data?.optString("status") == "ok"
+            val offlineAccepted = offline.type == TicketCheckProvider.CheckResult.Type.VALID
+            if (onlineAccepted != offlineAccepted) {
+                val online = response.data?.optString("reason")?.ifEmpty { null }
+                    ?: response.data?.optString("status")
+                    ?: response.response.code.toString()
+                val message = "Late server response disagrees with offline check: server $online, offline ${offline.type}"
+                sentry.addBreadcrumb("provider.check", message)
+                sentry.captureException(IllegalStateException(message), message)
+            }
+        }
+    }
+
+    private fun isOfflineFirst(): Boolean {
+        val tracker = connectivity ?: return false
+        if (tracker.shouldProbe()) {
+            // Nothing is redeemed while we check offline, so find out in the background whether
+            // the server is reachable again
+            executor.execute {
+                try {
+                    val timings = api.ping(fallbackTimeout.toLong())
+                    tracker.recordSuccess((timings.connectNanos + timings.requestNanos) / 1_000_000)
+                } catch (e: ApiException) {
+                    tracker.recordError()
+                }
+            }
+        }
+        return tracker.isOfflineFirst
+    }
+
+    /**
+     * Reports the round-trip time of a request to the [connectivity] tracker, or an error if the
+     * server could not be reached.
+     */
+    private fun <T> recordRoundTrip(block: () -> T): T {
+        val tracker = connectivity ?: return block()
+        val start = System.nanoTime()
+        try {
+            val result = block()
+            tracker.recordSuccess((System.nanoTime() - start) / 1_000_000)
+            return result
+        } catch (e: ApiException) {
+            if (e is TimeoutApiException || e.cause is IOException) {
+                tracker.recordError()
+            }
+            throw e
+        }
+    }
+
+    private fun awaitResponse(future: Future<PretixApi.ApiResponse>, timeoutMillis: Long): PretixApi.ApiResponse {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS)
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
     }
 
     override fun check(eventsAndCheckinLists: Map<String, Long>, ticketid: String): TicketCheckProvider.CheckResult {
         return check(eventsAndCheckinLists, ticketid, "barcode", ArrayList(), false, true, TicketCheckProvider.CheckInType.ENTRY)
     }
 
+    override fun checkBatch(eventsAndCheckinLists: Map<String, Long>, scans: List<TicketCheckProvider.ScanRequest>): List<TicketCheckProvider.CheckResult> {
+        // The server has no batch endpoint, so scans are redeemed one after another to keep their
+        // order. Once a scan had to be handed to the fallback because the server did not respond in
+        // time, the remaining scans would most likely time out as well, so we don't wait for that.
+        if (fallback != null && isOfflineFirst()) {
+            return fallback.checkBatch(eventsAndCheckinLists, scans)
+        }
+        val results = ArrayList<TicketCheckProvider.CheckResult>(scans.size)
+        for ((i, scan) in scans.withIndex()) {
+            val res = check(
+                eventsAndCheckinLists,
+                scan.ticketid,
+                scan.source_type,
+                scan.answers,
+                scan.ignore_unpaid,
+                scan.with_badge_data,
+                scan.type,
+                scan.nonce,
+                scan.allowQuestions,
+                scan.useOrderLocale,
+            )
+            results.add(res)
+            if (res.offline && fallback != null) {
+                results.addAll(fallback.checkBatch(eventsAndCheckinLists, scans.subList(i + 1, scans.size)))
+                break
+            }
+        }
+        return results
+    }
+
     @Throws(CheckException::class)
     override fun search(eventsAndCheckinLists: Map<String, Long>, query: String, page: Int): List<TicketCheckProvider.SearchResult> {
+        return searchPage(eventsAndCheckinLists, query, page).results
+    }
+
+    /**
+     * The server paginates search results by page number, so the cursor is the number of the next
+     * page. It is only returned if the server announces a next page.
+     */
+    @Throws(CheckException::class)
+    override fun search(eventsAndCheckinLists: Map<String, Long>, query: String, cursor: String?): TicketCheckProvider.SearchPage {
+        val page = if (cursor != null) {
+            cursor.toIntOrNull() ?: throw CheckException("Invalid search cursor")
+        } else {
+            1
+        }
+        return searchPage(eventsAndCheckinLists, query, page)
+    }
+
+    private fun searchPage(eventsAndCheckinLists: Map<String, Long>, query: String, page: Int): TicketCheckProvider.SearchPage {
         sentry.addBreadcrumb("provider.search", "started")
         return try {
-            val response = if (config.knownPretixVersion >= 40120001001) { // < 4.12.0.dev1
-                api.search(eventsAndCheckinLists.values.toList(), query, page)
-            } else {
-                if (eventsAndCheckinLists.size != 1) throw CheckException("Multi-event scan not supported by server.")
-                api.search(eventsAndCheckinLists.keys.first(), eventsAndCheckinLists.values.first(), query, page)
+            val response = recordRoundTrip {
+                api.interactive {
+                    if (config.knownPretixVersion >= 40120001001) { // < 4.12.0.dev1
+                        api.search(eventsAndCheckinLists.values.toList(), query, page)
+                    } else {
+                        if (eventsAndCheckinLists.size != 1) throw CheckException("Multi-event scan not supported by server.")
+                        api.search(eventsAndCheckinLists.keys.first(), eventsAndCheckinLists.values.first(), query, page)
+                    }
+                }
             }
             val resdata = response.data!!.getJSONArray("results")
             val results: MutableList<TicketCheckProvider.SearchResult> = ArrayList()
@@ -399,7 +668,8 @@ class OnlineCheckProvider(
                 sr.position = res
                 results.add(sr)
             }
-            results
+            val cursor = if (!response.data!!.isNull("next")) (page + 1).toString() else null
+            TicketCheckProvider.SearchPage(results, cursor)
         } catch (e: JSONException) {
             sentry.captureException(e)
             throw CheckException("Unknown server response", e)
@@ -413,7 +683,7 @@ class OnlineCheckProvider(
     override fun status(eventSlug: String, listId: Long): TicketCheckProvider.StatusResult? {
         sentry.addBreadcrumb("provider.status", "started")
         return try {
-            val response = api.status(eventSlug, listId)
+            val response = api.interactive { api.status(eventSlug, listId) }
             val r = parseStatusResponse(response.data!!)
 
             val list = db.checkInListQueries.selectByServerIdAndEventSlug(
@@ -435,6 +705,15 @@ class OnlineCheckProvider(
     }
 
     companion object {
+        private const val LATENCY_SAMPLES = 100
+        private const val LATENCY_MIN_SAMPLES = 10
+
+        private val executor = Executors.newCachedThreadPool { r ->
+            val t = Thread(r, "OnlineCheckProvider")
+            t.isDaemon = true
+            t
+        }
+
         @Throws(JSONException::class)
         fun parseStatusResponse(response: JSONObject): TicketCheckProvider.StatusResult {
             val items: MutableList<TicketCheckProvider.StatusResultItem> = ArrayList()
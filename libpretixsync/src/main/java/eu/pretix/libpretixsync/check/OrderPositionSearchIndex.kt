@@ -0,0 +1,126 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.text.Normalizer
+import java.util.Locale
+import java.util.WeakHashMap
+
+/**
+ * Search index for the offline attendee search, maintained by
+ * [eu.pretix.libpretixsync.sync.OrderSyncAdapter].
+ *
+ * All searchable fields of a position (secret, attendee name and email, order code and email)
+ * are normalized, i.e. accents are removed and letters are upper-cased, and split into words.
+ * Every substring of [TOKEN_LENGTH] characters of every word (trigram) is stored in an indexed
+ * table, which is used to find candidates, and the normalized fields are stored once more as a
+ * whole, to check whether a candidate actually contains the query. As all trigrams are indexed,
+ * a query may also start in the middle of a word, like the LIKE query used before the index did.
+ *
+ * Positions synced before the index existed are added by [backfill]. Until that has happened,
+ * searches can't rely on the index, see [isComplete].
+ *
+ * We don't use the full-text search modules of SQLite, as FTS5 is not available in the SQLite
+ * version shipped with Android.
+ */
+object OrderPositionSearchIndex {
+    const val TOKEN_LENGTH = 3
+    private const val BACKFILL_BATCH_SIZE = 500L
+
+    // Databases whose positions are all indexed. Positions are indexed whenever they are
+    // written, so this does not change back. Keyed weakly by database, see TicketSecretFilter
+    private val complete = WeakHashMap<SyncDatabase, Boolean>()
+
+    private val COMBINING_MARKS = Regex("\\p{M}+")
+    private val WORD_SEPARATORS = Regex("[^\\p{L}\\p{N}]+")
+
+    fun normalize(value: String): String =
+        Normalizer.normalize(value, Normalizer.Form.NFD)
+            .replace(COMBINING_MARKS, "")
+            .uppercase(Locale.ROOT)
+
+    private fun tokens(normalized: String): Set<String> =
+        normalized.split(WORD_SEPARATORS)
+            .flatMap { it.windowed(TOKEN_LENGTH) }
+            .toSet()
+
+    /**
+     * Returns the indexed token that should be used to look up candidates for a normalized query,
+     * or `null` if the query contains no word long enough to use the index. Any trigram of the
+     * query is contained in all matching positions, we use the first one of its longest word.
+     */
+    fun queryToken(normalizedQuery: String): String? {
+        val longest = normalizedQuery.split(WORD_SEPARATORS).maxByOrNull { it.length } ?: return null
+        return if (longest.length >= TOKEN_LENGTH) longest.substring(0, TOKEN_LENGTH) else null
+    }
+
+    fun index(
+        db: SyncDatabase,
+        positionId: Long,
+        secret: String?,
+        attendeeName: String?,
+        attendeeEmail: String?,
+        orderCode: String?,
+        orderEmail: String?,
+    ) {
+        // Fields are separated by line breaks, so a query cannot match across two fields
+        val text = listOfNotNull(secret, attendeeName, attendeeEmail, orderCode, orderEmail)
+            .joinToString("\n") { normalize(it) }
+
+        db.orderPositionSearchQueries.deleteTokensForPosition(positionId)
+        db.orderPositionSearchQueries.deleteTextForPosition(positionId)
+        for (token in tokens(text)) {
+            db.orderPositionSearchQueries.insertToken(
+                position_id = positionId,
+                token = token,
+            )
+        }
+        db.orderPositionSearchQueries.insertText(
+            position_id = positionId,
+            search_text = text,
+        )
+    }
+
+    /**
+     * Whether all positions are in the index.
+     */
+    @JvmStatic
+    fun isComplete(db: SyncDatabase): Boolean {
+        synchronized(complete) {
+            if (complete[db] == true) {
+                return true
+            }
+        }
+        if (db.orderPositionSearchQueries.selectUnindexed(limit = 1).executeAsList().isNotEmpty()) {
+            return false
+        }
+        synchronized(complete) {
+            complete[db] = true
+        }
+        return true
+    }
+
+    /**
+     * Indexes all positions that are not in the index yet, e.g. those synced before an upgrade
+     * that introduced the index.
+     */
+    @JvmStatic
+    fun backfill(db: SyncDatabase) {
+        if (isComplete(db)) {
+            return
+        }
+        while (true) {
+            val rows = db.orderPositionSearchQueries.selectUnindexed(limit = BACKFILL_BATCH_SIZE).executeAsList()
+            if (rows.isEmpty()) {
+                break
+            }
+            db.transaction {
+                for (row in rows) {
+                    index(db, row.id, row.secret, row.attendee_name, row.attendee_email, row.code, row.email)
+                }
+            }
+        }
+        synchronized(complete) {
+            complete[db] = true
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.Date
+import java.util.WeakHashMap
+
+/**
+ * In-memory index of all reusable media by type and identifier, used by the offline check to
+ * tell whether a scanned code belongs to a medium without a database lookup. Most scanned codes
+ * are not media identifiers, so this mostly saves queries for codes that are not found.
+ *
+ * Every entry also holds the positions linked to the medium with their secrets and events, so
+ * the positions of a scanned medium can be taken from [HotTicketCache] like those of a scanned
+ * secret.
+ *
+ * The index is loaded lazily from the database on first use. Afterwards,
+ * [eu.pretix.libpretixsync.sync.ReusableMediaSyncAdapter] applies its changes once they are
+ * committed. [eu.pretix.libpretixsync.sync.OrderSyncAdapter] invalidates the index if the secret
+ * of a position changes.
+ */
+class ReusableMediumIndex private constructor() {
+    class LinkedPosition(val id: Long, val secret: String, val eventSlug: String)
+
+    class Entry(val id: Long, val active: Boolean, private val expires: Long?, val positions: List<LinkedPosition>) {
+        fun isExpired(now: Long): Boolean = expires != null && expires < now
+    }
+
+    private val entries = HashMap<String, Entry>()
+    // Key of every medium ID, to find the previous entry if type or identifier changed
+    private val keys = HashMap<Long, String>()
+    private var loaded = false
+
+    @Synchronized
+    fun lookup(db: SyncDatabase, type: String, identifier: String): Entry? {
+        if (!loaded) {
+            load(db)
+            loaded = true
+        }
+        return entries[key(type, identifier)]
+    }
+
+    @Synchronized
+    fun put(id: Long, type: String?, identifier: String?, active: Boolean, expires: Date?, positions: List<LinkedPosition>) {
+        remove(id)
+        if (type == null || identifier == null) {
+            return
+        }
+        val key = key(type, identifier)
+        entries[key] = Entry(id, active, expires?.time, positions)
+        keys[id] = key
+    }
+
+    @Synchronized
+    fun remove(id: Long) {
+        val key = keys.remove(id) ?: return
+        if (entries[key]?.id == id) {
+            entries.remove(key)
+        }
+    }
+
+    /**
+     * Drops all entries, the index is read from the database again on next use.
+     */
+    @Synchronized
+    fun invalidate() {
+        entries.clear()
+        keys.clear()
+        loaded = false
+    }
+
+    private fun load(db: SyncDatabase) {
+        val positions = HashMap<Long, MutableList<LinkedPosition>>()
+        for (row in db.reusableMediumQueries.selectLinkedPositionsForIndex().executeAsList()) {
+            val secret = row.secret ?: continue
+            val eventSlug = row.event_slug ?: continue
+            positions.getOrPut(row.ReusableMediumId) { ArrayList() }
+                .add(LinkedPosition(row.id, secret, eventSlug))
+        }
+        for (row in db.reusableMediumQueries.selectForIndex().executeAsList()) {
+            put(row.id, row.type, row.identifier, row.active, row.expires, positions[row.id] ?: emptyList())
+        }
+    }
+
+    private fun key(type: String, identifier: String) = "$type:$identifier"
+
+    companion object {
+        // Keyed weakly by database, see TicketSecretFilter
+        private val indexes = WeakHashMap<SyncDatabase, ReusableMediumIndex>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): ReusableMediumIndex {
+            synchronized(indexes) {
+                return indexes.getOrPut(db) { ReusableMediumIndex() }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package eu.pretix.libpretixsync.check
+
+/**
+ * Data for the evaluation of check-in rules. Values added with [putLazy] are only computed if a
+ * rule actually reads them.
+ */
+internal class RuleData : AbstractMap<String, Any>() {
+    private val values = LinkedHashMap<String, Lazy<Any>>()
+
+    fun put(key: String, value: Any) {
+        values[key] = lazyOf(value)
+    }
+
+    fun putLazy(key: String, compute: () -> Any) {
+        values[key] = lazy(LazyThreadSafetyMode.NONE, compute)
+    }
+
+    override fun get(key: String): Any? = values[key]?.value
+
+    override fun containsKey(key: String): Boolean = values.containsKey(key)
+
+    override val entries: Set<Map.Entry<String, Any>>
+        get() = values.entries.associateTo(LinkedHashMap()) { it.key to it.value.value }.entries
+}
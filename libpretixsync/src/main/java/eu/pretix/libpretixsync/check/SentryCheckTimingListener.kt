@@ -0,0 +1,17 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.SentryInterface
+
+/**
+ * [CheckTimingListener] that reports every check as a transaction to Sentry, with one span per
+ * stage.
+ */
+class SentryCheckTimingListener(private val sentry: SentryInterface) : CheckTimingListener {
+    override fun onCheckTimings(timings: CheckTimings) {
+        sentry.recordTransaction(
+            if (timings.offline) "check.offline" else "check.online",
+            timings.totalNanos,
+            timings.stages.mapKeys { it.key.name.lowercase() },
+        )
+    }
+}
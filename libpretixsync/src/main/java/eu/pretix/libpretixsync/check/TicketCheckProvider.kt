@@ -153,6 +153,17 @@ interface TicketCheckProvider {
         }
     }
 
+    /**
+     * One page of results of [search]. [cursor] is passed to [search] to fetch the next page and is
+     * `null` if there are no further results.
+     */
+    class SearchPage(val results: List<SearchResult>, val cursor: String?)
+
+    /**
+     * Result of [prepare].
+     */
+    class PrepareResult(val durationNanos: Long, val syntheticChecks: Int)
+
     class StatusResultItemVariation(var id: Long, var name: String?, var total: Int, var checkins: Int) {
     }
 
@@ -163,6 +174,21 @@ interface TicketCheckProvider {
     class StatusResult(var eventName: String?, var totalTickets: Int, var alreadyScanned: Int, var currentlyInside: Int?, var items: List<StatusResultItem>?) {
     }
 
+    /**
+     * A single scan as part of [checkBatch], with the same meaning as the parameters of [check].
+     */
+    data class ScanRequest(
+        val ticketid: String,
+        val source_type: String = "barcode",
+        val answers: List<Answer>? = null,
+        val ignore_unpaid: Boolean = false,
+        val with_badge_data: Boolean = true,
+        val type: CheckInType = CheckInType.ENTRY,
+        val nonce: String? = null,
+        val allowQuestions: Boolean = true,
+        val useOrderLocale: Boolean = false,
+    )
+
     fun check(
         eventsAndCheckinLists: Map<String, Long>,
         ticketid: String,
@@ -179,11 +205,77 @@ interface TicketCheckProvider {
     ): CheckResult
 
     fun check(eventsAndCheckinLists: Map<String, Long>, ticketid: String): CheckResult
+
+    /**
+     * Checks a number of scans at once. The result has one entry per scan, in the same order, and
+     * each scan is treated as if [check] had been called for it after all previous scans of the
+     * batch, i.e. the second scan of a ticket that occurs twice within a batch sees the check-in
+     * created by the first one.
+     */
+    fun checkBatch(eventsAndCheckinLists: Map<String, Long>, scans: List<ScanRequest>): List<CheckResult> {
+        return scans.map {
+            check(eventsAndCheckinLists, it.ticketid, it.source_type, it.answers, it.ignore_unpaid, it.with_badge_data, it.type, it.nonce, it.allowQuestions, it.useOrderLocale)
+        }
+    }
+
+    /**
+     * Prepares everything needed to check tickets on the given lists, e.g. by loading data from
+     * the database, so the first scans are not slower than the following ones. Should be called
+     * after the app has started and after every sync, before guests arrive.
+     *
+     * Optionally, a number of synthetic checks is run that go through the whole check without
+     * storing anything. Providers that have nothing to prepare return immediately.
+     */
+    fun prepare(eventsAndCheckinLists: Map<String, Long>, syntheticChecks: Int = 0): PrepareResult {
+        return PrepareResult(0L, 0)
+    }
+
+    /**
+     * Evaluates a scan like [check], but without storing anything, e.g. to have the answer of a
+     * fallback provider ready before it is needed. Returns `null` if the provider does not support
+     * this.
+     */
+    fun evaluate(
+        eventsAndCheckinLists: Map<String, Long>,
+        ticketid: String,
+        source_type: String,
+        answers: List<Answer>?,
+        ignore_unpaid: Boolean,
+        type: CheckInType,
+        allowQuestions: Boolean = true,
+    ): CheckResult? {
+        return null
+    }
+
     @Throws(CheckException::class)
     fun search(eventsAndCheckinLists: Map<String, Long>, query: String, page: Int): List<SearchResult>
 
+    /**
+     * Searches like [search] with a page number, but continues after the page the given cursor
+     * was returned with, or starts at the first page if it is `null`. Cursors are opaque and only
+     * valid for the same provider, check-in lists and query.
+     *
+     * Providers without support for cursors use the page number as the cursor.
+     */
+    @Throws(CheckException::class)
+    fun search(eventsAndCheckinLists: Map<String, Long>, query: String, cursor: String?): SearchPage {
+        val page = if (cursor != null) {
+            cursor.toIntOrNull() ?: throw CheckException("Invalid search cursor")
+        } else {
+            1
+        }
+        val results = search(eventsAndCheckinLists, query, page)
+        return SearchPage(results, if (results.isNotEmpty()) (page + 1).toString() else null)
+    }
+
     @Throws(CheckException::class)
     fun status(eventSlug: String, listId: Long): StatusResult?
 
     fun setSentry(sentry: SentryInterface)
+
+    /**
+     * Sets a listener that receives per-stage timings of every check, or removes it if `null` is
+     * passed. Providers that do not support timing measurements ignore this.
+     */
+    fun setTimingListener(listener: CheckTimingListener?) {}
 }
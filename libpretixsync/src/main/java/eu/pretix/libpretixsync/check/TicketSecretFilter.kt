@@ -0,0 +1,89 @@
+package eu.pretix.libpretixsync.check
+
+import app.cash.sqldelight.ExecutableQuery
+import app.cash.sqldelight.db.QueryResult
+import eu.pretix.libpretixsync.sqldelight.SyncDatabase
+import java.util.WeakHashMap
+
+/**
+ * In-memory pre-filter for revoked and blocked ticket secrets, used by the offline check to skip
+ * the database lookups for the vast majority of tickets that are neither revoked nor blocked.
+ *
+ * Only the hash codes of the secrets are kept. A negative answer is definite, a positive answer
+ * means the secret *might* be revoked or blocked and needs to be confirmed with the database.
+ * The sets are loaded lazily from the database on first use and afterwards kept up to date by
+ * [eu.pretix.libpretixsync.sync.RevokedTicketSecretSyncAdapter] and
+ * [eu.pretix.libpretixsync.sync.BlockedTicketSecretSyncAdapter]. Entries are never removed when a
+ * secret is unrevoked or unblocked, as another secret might share the same hash code. This only
+ * causes a superfluous database lookup until [invalidate] is called.
+ */
+class TicketSecretFilter private constructor() {
+    // Secrets recorded by the sync adapters are kept even before the filter is loaded, since a
+    // sync transaction might not have been committed yet when the database is read.
+    private val revoked = HashSet<Int>()
+    private val blocked = HashSet<Int>()
+    private var revokedLoaded = false
+    private var blockedLoaded = false
+
+    @Synchronized
+    fun mightBeRevoked(db: SyncDatabase, secret: String): Boolean {
+        if (!revokedLoaded) {
+            loadSecrets(revoked) { db.revokedTicketSecretQueries.selectSecrets() }
+            revokedLoaded = true
+        }
+        return revoked.contains(secret.hashCode())
+    }
+
+    @Synchronized
+    fun mightBeBlocked(db: SyncDatabase, secret: String): Boolean {
+        if (!blockedLoaded) {
+            loadSecrets(blocked) { db.blockedTicketSecretQueries.selectBlockedSecrets() }
+            blockedLoaded = true
+        }
+        return blocked.contains(secret.hashCode())
+    }
+
+    @Synchronized
+    fun addRevoked(secret: String) {
+        revoked.add(secret.hashCode())
+    }
+
+    @Synchronized
+    fun addBlocked(secret: String) {
+        blocked.add(secret.hashCode())
+    }
+
+    /**
+     * Drops all entries, the filter is read from the database again on next use.
+     */
+    @Synchronized
+    fun invalidate() {
+        revoked.clear()
+        blocked.clear()
+        revokedLoaded = false
+        blockedLoaded = false
+    }
+
+    private fun loadSecrets(target: MutableSet<Int>, query: () -> ExecutableQuery<*>) {
+        query().execute { cursor ->
+            while (cursor.next().value) {
+                val secret = cursor.getString(0) ?: continue
+                target.add(secret.hashCode())
+            }
+            QueryResult.Unit
+        }
+    }
+
+    companion object {
+        // Keyed weakly by database, so filters of databases that are no longer used (e.g. in tests)
+        // do not linger around. The filter itself must never hold a reference to the database.
+        private val filters = WeakHashMap<SyncDatabase, TicketSecretFilter>()
+
+        @JvmStatic
+        fun forDatabase(db: SyncDatabase): TicketSecretFilter {
+            synchronized(filters) {
+                return filters.getOrPut(db) { TicketSecretFilter() }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package eu.pretix.libpretixsync.crypto
+
+import eu.pretix.libpretixsync.utils.codec.binary.Base64.decodeBase64
+import net.i2p.crypto.eddsa.EdDSAPublicKey
+import org.json.JSONArray
+import java.nio.charset.Charset
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps the parsed pretix_sig1 public keys of every event in memory, so an offline scan does not
+ * need to decode and parse all PEM-encoded keys again.
+ *
+ * Entries are keyed by event slug and compared against the raw key material on every lookup, so
+ * a changed set of keys is never verified against stale keys, even if [invalidate] has not been
+ * called yet.
+ */
+object Sig1VerifierCache {
+    private class Verifiers(val material: List<String>, val keys: List<EdDSAPublicKey>) {
+        // Almost all tickets of an event are signed with the same key, so we try the key that
+        // matched last time first.
+        @Volatile
+        var lastMatch: Int = 0
+    }
+
+    private val cache = ConcurrentHashMap<String, Verifiers>()
+
+    fun verify(eventSlug: String, validKeys: JSONArray, payload: ByteArray, signature: ByteArray): Boolean {
+        val verifiers = getVerifiers(eventSlug, validKeys)
+        val last = verifiers.lastMatch
+        if (last < verifiers.keys.size && isValidSignature(payload, signature, verifiers.keys[last])) {
+            return true
+        }
+        for (i in verifiers.keys.indices) {
+            if (i == last) {
+                continue
+            }
+            if (isValidSignature(payload, signature, verifiers.keys[i])) {
+                verifiers.lastMatch = i
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Parses the keys of an event ahead of the first verification.
+     */
+    fun prepare(eventSlug: String, validKeys: JSONArray) {
+        getVerifiers(eventSlug, validKeys)
+    }
+
+    fun invalidate(eventSlug: String) {
+        cache.remove(eventSlug)
+    }
+
+    fun invalidateAll() {
+        cache.clear()
+    }
+
+    private fun getVerifiers(eventSlug: String, validKeys: JSONArray): Verifiers {
+        val material = List(validKeys.length()) { validKeys.getString(it) }
+        val known = cache[eventSlug]
+        if (known != null && known.material == material) {
+            return known
+        }
+        val keys = material.map {
+            readPubkeyFromPem(decodeBase64(it.toByteArray(Charset.defaultCharset())).toString(Charset.defaultCharset()))
+        }
+        val verifiers = Verifiers(material, keys)
+        cache[eventSlug] = verifiers
+        return verifiers
+    }
+}
@@ -21,8 +21,14 @@ fun readPubkeyFromPem(pem: String): EdDSAPublicKey {
     return EdDSAPublicKey(keySpec)
 }
 
+// EdDSAEngine is not thread-safe, but can be re-used for any number of keys since initVerify()
+// resets its state.
+private val verifyEngine = object : ThreadLocal<EdDSAEngine>() {
+    override fun initialValue(): EdDSAEngine = EdDSAEngine()
+}
+
 fun isValidSignature(payload: ByteArray, signature: ByteArray, publicKey: EdDSAPublicKey): Boolean {
-    val engine = EdDSAEngine()
+    val engine = verifyEngine.get()!!
     engine.initVerify(publicKey)
     return engine.verifyOneShot(payload, signature)
 }
@@ -9,9 +9,12 @@ import org.json.JSONObject
 import java.math.BigDecimal
 import eu.pretix.libpretixsync.models.OrderPosition as OrderPositionModel
 
-fun OrderPosition.toModel(): OrderPositionModel {
-    val json = JSONObject(this.json_data)
+fun OrderPosition.toModel(): OrderPositionModel = toModel(JSONObject(this.json_data))
 
+/**
+ * Same as [toModel], for callers that need the parsed JSON data themselves as well.
+ */
+fun OrderPosition.toModel(json: JSONObject): OrderPositionModel {
     return OrderPositionModel(
         id = this.id,
         serverId = this.server_id,
@@ -3,6 +3,9 @@ package eu.pretix.libpretixsync.sync
 import app.cash.sqldelight.TransactionWithoutReturn
 import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
+import eu.pretix.libpretixsync.check.DateAnchorCache
+import eu.pretix.libpretixsync.crypto.Sig1VerifierCache
 import eu.pretix.libpretixsync.sqldelight.Event
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
 import eu.pretix.libpretixsync.sync.SyncManager.ProgressFeedback
@@ -71,6 +74,9 @@ class AllEventsSyncAdapter(
             live = jsonobj.getBoolean("live"),
             slug = jsonobj.getString("slug"),
         )
+        Sig1VerifierCache.invalidate(jsonobj.getString("slug"))
+        CheckContextCache.forDatabase(db).invalidate(jsonobj.getString("slug"))
+        DateAnchorCache.forDatabase(db).invalidate(jsonobj.getString("slug"))
     }
 
     override fun update(obj: Event, jsonobj: JSONObject) {
@@ -93,16 +99,27 @@ class AllEventsSyncAdapter(
             live = jsonobj.getBoolean("live"),
             slug = obj.slug,
         )
+        Sig1VerifierCache.invalidate(obj.slug!!)
+        CheckContextCache.forDatabase(db).invalidate(obj.slug!!)
+        DateAnchorCache.forDatabase(db).invalidate(obj.slug!!)
     }
 
     override fun delete(key: String) {
         db.eventQueries.deleteBySlug(key)
+        Sig1VerifierCache.invalidate(key)
+        CheckContextCache.forDatabase(db).invalidate(key)
+        DateAnchorCache.forDatabase(db).invalidate(key)
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
         db.eventQueries.transaction(false, body)
     }
 
+    override fun afterPageCommit() {
+        CheckContextCache.forDatabase(db).invalidateAll()
+        DateAnchorCache.forDatabase(db).invalidateAll()
+    }
+
     override fun runBatch(parameterBatch: List<String>): List<Event> =
         db.eventQueries.selectBySlugList(parameterBatch).executeAsList()
 }
@@ -5,6 +5,7 @@ import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.api.ResourceNotModified
+import eu.pretix.libpretixsync.check.DateAnchorCache
 import eu.pretix.libpretixsync.sqldelight.ResourceSyncStatus
 import eu.pretix.libpretixsync.sqldelight.SubEvent
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -79,6 +80,7 @@ class AllSubEventsSyncAdapter(
             json_data = jsonobj.toString(),
             server_id = jsonobj.getLong("id"),
         )
+        DateAnchorCache.forDatabase(db).invalidate(jsonobj.getString("event"))
     }
 
     override fun update(obj: SubEvent, jsonobj: JSONObject) {
@@ -100,10 +102,16 @@ class AllSubEventsSyncAdapter(
             json_data = jsonobj.toString(),
             id = obj.id,
         )
+        DateAnchorCache.forDatabase(db).invalidate(jsonobj.getString("event"))
     }
 
     override fun delete(key: Long) {
         db.subEventQueries.deleteByServerId(key)
+        DateAnchorCache.forDatabase(db).invalidateAll()
+    }
+
+    override fun afterPageCommit() {
+        DateAnchorCache.forDatabase(db).invalidateAll()
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
@@ -146,6 +146,7 @@ abstract class BaseDownloadSyncAdapter<T, K>(
             }
 
             afterPage()
+            afterCommit { afterPageCommit() }
             null
         }
         total += l
@@ -155,6 +156,12 @@ abstract class BaseDownloadSyncAdapter<T, K>(
 
     protected open fun afterPage() {}
 
+    /**
+     * Called once the transaction of a page has been committed, e.g. to drop in-memory caches
+     * that might have been filled with data from before the transaction.
+     */
+    protected open fun afterPageCommit() {}
+
     protected open fun prepareDelete(obj: T) {}
 
     protected open fun deleteUnseen(): Boolean {
@@ -187,6 +194,10 @@ abstract class BaseDownloadSyncAdapter<T, K>(
         InterruptedException::class
     )
     protected open fun downloadData() {
+        if (streamPages()) {
+            downloadDataStreaming()
+            return
+        }
         var url = getUrl()
         var isFirstPage = true
         var future: CompletableFuture<Boolean>? = null
@@ -220,6 +231,60 @@ abstract class BaseDownloadSyncAdapter<T, K>(
         return api.fetchResource(url).data
     }
 
+    /**
+     * Whether pages are parsed while they are downloaded, see [downloadDataStreaming]. Meant for
+     * resources with large pages, since pages are no longer processed in parallel to the download
+     * of the next one.
+     */
+    protected open fun streamPages(): Boolean = false
+
+    /**
+     * Downloads all pages like [downloadData], but processes the results of a page in chunks of
+     * [STREAM_CHUNK_SIZE] while the page is being read, so only one chunk is held in memory at a
+     * time, no matter how large the pages are.
+     */
+    @Throws(
+        JSONException::class,
+        ApiException::class,
+        ResourceNotModified::class,
+        InterruptedException::class
+    )
+    protected fun downloadDataStreaming() {
+        var url = getUrl()
+        var isFirstPage = true
+        while (true) {
+            val isCanceled = canceledState.let {
+                it != null && it.isCanceled
+            }
+            if (isCanceled) {
+                throw InterruptedException()
+            }
+
+            var chunk = JSONArray()
+            val page = downloadPageStreaming(url, isFirstPage) {
+                chunk.put(it)
+                if (chunk.length() >= STREAM_CHUNK_SIZE) {
+                    processPage(chunk)
+                    chunk = JSONArray()
+                }
+            }
+            if (chunk.length() > 0) {
+                processPage(chunk)
+            }
+            totalOnline = page.count
+            if (page.next == null) {
+                break
+            }
+            url = page.next
+            isFirstPage = false
+        }
+    }
+
+    @Throws(ApiException::class, ResourceNotModified::class)
+    protected open fun downloadPageStreaming(url: String, isFirstPage: Boolean, onResult: (JSONObject) -> Unit): PretixApi.PageInfo {
+        return api.fetchPage(url, null, onResult)
+    }
+
     abstract fun getResourceName(): String
 
     abstract fun getId(obj: T): K
@@ -239,4 +304,8 @@ abstract class BaseDownloadSyncAdapter<T, K>(
     abstract fun delete(key: K)
 
     abstract fun runInTransaction(body: TransactionWithoutReturn.() -> Unit)
+
+    companion object {
+        const val STREAM_CHUNK_SIZE = 50
+    }
 }
@@ -60,9 +60,16 @@ abstract class BaseSingleObjectSyncAdapter<T>(
             } else {
                 insert(data)
             }
+            afterCommit { afterDataCommit() }
         }
     }
 
+    /**
+     * Called once the transaction storing the object has been committed, see
+     * [BaseDownloadSyncAdapter.afterPageCommit].
+     */
+    protected open fun afterDataCommit() {}
+
     protected open fun getUrl(): String {
         return api.eventResourceUrl(eventSlug, getResourceName() + "/" + key)
     }
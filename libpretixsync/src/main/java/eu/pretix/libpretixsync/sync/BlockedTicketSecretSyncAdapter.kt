@@ -5,6 +5,7 @@ import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.api.ResourceNotModified
+import eu.pretix.libpretixsync.check.TicketSecretFilter
 import eu.pretix.libpretixsync.sqldelight.BlockedTicketSecret
 import eu.pretix.libpretixsync.sqldelight.ResourceSyncStatus
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -73,6 +74,7 @@ class BlockedTicketSecretSyncAdapter(
             server_id = jsonobj.getLong("id"),
             updated = jsonobj.getString("updated"),
         )
+        TicketSecretFilter.forDatabase(db).addBlocked(jsonobj.getString("secret"))
     }
 
     override fun update(obj: BlockedTicketSecret, jsonobj: JSONObject) {
@@ -85,6 +87,9 @@ class BlockedTicketSecretSyncAdapter(
             updated = jsonobj.getString("updated"),
             id = obj.id,
         )
+        if (jsonobj.getBoolean("blocked")) {
+            TicketSecretFilter.forDatabase(db).addBlocked(jsonobj.getString("secret"))
+        }
     }
 
     override fun delete(key: Long) {
@@ -3,6 +3,8 @@ package eu.pretix.libpretixsync.sync
 import app.cash.sqldelight.TransactionWithoutReturn
 import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
+import eu.pretix.libpretixsync.check.CheckInStatistics
 import eu.pretix.libpretixsync.sqldelight.CheckInList
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -83,6 +85,7 @@ class CheckInListSyncAdapter(
         }
 
         upsertItemRelations(listId, emptySet(), jsonobj)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: CheckInList, jsonobj: JSONObject) {
@@ -104,10 +107,21 @@ class CheckInListSyncAdapter(
             id = obj.id,
         )
 
-        upsertItemRelations(obj.id, existingRelations, jsonobj)
+        val itemsChanged = upsertItemRelations(obj.id, existingRelations, jsonobj)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+        // Other changes, e.g. of the name or the rules, do not affect which positions are counted
+        if (itemsChanged ||
+            obj.all_items != jsonobj.optBoolean("all_products") ||
+            obj.include_pending != jsonobj.optBoolean("include_pending") ||
+            (obj.subevent_id ?: 0L) != jsonobj.optLong("subevent")) {
+            CheckInStatistics.invalidateList(db, obj.server_id!!)
+        }
     }
 
-    private fun upsertItemRelations(listId: Long, existingIds: Set<Long>, jsonobj: JSONObject) {
+    /**
+     * Returns whether the items of the list have changed.
+     */
+    private fun upsertItemRelations(listId: Long, existingIds: Set<Long>, jsonobj: JSONObject): Boolean {
         val itemsarr = jsonobj.getJSONArray("limit_products")
         val itemids = ArrayList<Long>(itemsarr.length())
         for (i in 0 until itemsarr.length()) {
@@ -134,18 +148,25 @@ class CheckInListSyncAdapter(
                 checkin_list_id = listId,
             )
         }
+        return newIds != existingIds
     }
 
     override fun delete(key: Long) {
         val list = db.checkInListQueries.selectByServerId(key).executeAsOne()
         db.checkInListQueries.deleteItemRelationsForList(list.id)
         db.checkInListQueries.deleteByServerId(key)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+        CheckInStatistics.invalidateList(db, key)
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
         db.checkInListQueries.transaction(false, body)
     }
 
+    override fun afterPageCommit() {
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     override fun runBatch(parameterBatch: List<Long>): List<CheckInList> =
         db.checkInListQueries.selectByServerIdListAndEventSlug(
             server_id = parameterBatch,
@@ -2,6 +2,9 @@ package eu.pretix.libpretixsync.sync
 
 import app.cash.sqldelight.TransactionWithoutReturn
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
+import eu.pretix.libpretixsync.check.DateAnchorCache
+import eu.pretix.libpretixsync.crypto.Sig1VerifierCache
 import eu.pretix.libpretixsync.sqldelight.Event
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -69,6 +72,9 @@ class EventSyncAdapter(
             live = jsonobj.getBoolean("live"),
             slug = jsonobj.getString("slug"),
         )
+        Sig1VerifierCache.invalidate(jsonobj.getString("slug"))
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: Event, jsonobj: JSONObject) {
@@ -91,12 +97,20 @@ class EventSyncAdapter(
             live = jsonobj.getBoolean("live"),
             slug = obj.slug,
         )
+        Sig1VerifierCache.invalidate(obj.slug!!)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
         db.eventQueries.transaction(false, body)
     }
 
+    override fun afterDataCommit() {
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     @Throws(JSONException::class)
     fun standaloneRefreshFromJSON(data: JSONObject) {
         // Store object
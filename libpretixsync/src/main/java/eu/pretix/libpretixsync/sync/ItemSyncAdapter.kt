@@ -4,6 +4,7 @@ import app.cash.sqldelight.TransactionWithoutReturn
 import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
 import eu.pretix.libpretixsync.sqldelight.Item
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -70,6 +71,7 @@ class ItemSyncAdapter(
             ticket_layout_id = null,
             ticket_layout_pretixpos_id = null,
         )
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: Item, jsonobj: JSONObject) {
@@ -86,10 +88,12 @@ class ItemSyncAdapter(
             position = jsonobj.getLong("position"),
             id = obj.id,
         )
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun delete(key: Long) {
         db.itemQueries.deleteByServerId(key)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     private fun processPicture(jsonobj: JSONObject, oldFilename: String?): String? {
@@ -151,6 +155,10 @@ class ItemSyncAdapter(
         db.itemQueries.transaction(false, body)
     }
 
+    override fun afterPageCommit() {
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     override fun runBatch(parameterBatch: List<Long>): List<Item> =
         db.itemQueries.selectByServerIdListAndEventSlug(
             server_id = parameterBatch,
@@ -2,6 +2,8 @@ package eu.pretix.libpretixsync.sync
 
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckInStatistics
+import eu.pretix.libpretixsync.check.HotTicketCache
 import eu.pretix.libpretixsync.models.db.toModel
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
 import eu.pretix.libpretixsync.sync.SyncManager.ProgressFeedback
@@ -125,6 +127,10 @@ class OrderCleanup(val db: SyncDatabase, val fileStorage: FileStorage, val api:
             // to do this with one query that works on SQLite and Postgres
             val count = db.orderCleanupQueries.transactionWithResult {
                 val count = db.orderCleanupQueries.countOrdersByIdList(idsToDelete).executeAsOne()
+                CheckInStatistics.Changes(db).apply {
+                    removeOrders(idsToDelete)
+                    store()
+                }
                 // sqlite foreign keys are created with `on delete cascade`,
                 // so order positions and checkins are handled automatically
                 db.orderCleanupQueries.deleteOrders(idsToDelete)
@@ -134,6 +140,9 @@ class OrderCleanup(val db: SyncDatabase, val fileStorage: FileStorage, val api:
             deleted += count
             feedback?.postFeedback("Deleting old orders ($deleted)…")
         }
+        if (deleted > 0) {
+            HotTicketCache.forDatabase(db).invalidateAll()
+        }
     }
 
     private var eventsDeletionDate = HashMap<String, Long>()
@@ -184,6 +193,9 @@ class OrderCleanup(val db: SyncDatabase, val fileStorage: FileStorage, val api:
                     deleted += count
                     feedback?.postFeedback("Deleting orders of old events ($deleted)…")
                 }
+                // All orders of the event are gone, so there is nothing left to count incrementally
+                CheckInStatistics.invalidate(db, slug)
+                HotTicketCache.forDatabase(db).invalidateAll()
             }
         }
     }
@@ -3,6 +3,10 @@ package eu.pretix.libpretixsync.sync
 import app.cash.sqldelight.TransactionWithoutReturn
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckInStatistics
+import eu.pretix.libpretixsync.check.HotTicketCache
+import eu.pretix.libpretixsync.check.ReusableMediumIndex
+import eu.pretix.libpretixsync.check.OrderPositionSearchIndex
 import eu.pretix.libpretixsync.sqldelight.CheckIn
 import eu.pretix.libpretixsync.sqldelight.Item
 import eu.pretix.libpretixsync.sqldelight.Migrations
@@ -43,7 +47,14 @@ class OrderSyncAdapter(
 
     private var firstResponseTimestamp: String? = null
     private var lastOrderTimestamp: String? = null
+    private var streamedOrderTimestamp: String? = null
     private var rlm: ResourceSyncStatus? = null
+    // Changes of the positions of the current page, see CheckInStatistics
+    private var statisticsChanges: CheckInStatistics.Changes? = null
+    // Secrets invalidated in HotTicketCache, invalidated again once they are committed
+    private val touchedSecrets: MutableSet<String> = HashSet()
+    // Whether a secret changed, which ReusableMediumIndex holds for linked positions
+    private var secretChanged = false
 
     private fun rlmName(): String {
         return if (withPdfData) {
@@ -105,6 +116,7 @@ class OrderSyncAdapter(
                 )
             }
             lastOrderTimestamp = null
+            streamedOrderTimestamp = null
             firstResponseTimestamp = null
         }
     }
@@ -173,6 +185,7 @@ class OrderSyncAdapter(
             db.compatQueries.getLastInsertedOrderPositionId().executeAsOne()
         }
 
+        indexPosition(id, posobj, jsonorder)
         afterInsertOrUpdatePositionObject(id, posobj.server_id, jsonobj)
     }
 
@@ -193,7 +206,24 @@ class OrderSyncAdapter(
             id = obj.id,
         )
 
+        indexPosition(obj.id, posobj, jsonorder)
         afterInsertOrUpdatePositionObject(obj.id, obj.server_id, jsonobj)
+        if (obj.secret != posobj.secret) {
+            secretChanged = true
+            ReusableMediumIndex.forDatabase(db).invalidate()
+        }
+    }
+
+    private fun indexPosition(positionId: Long, posobj: OrderPosition, jsonorder: JSONObject) {
+        OrderPositionSearchIndex.index(
+            db = db,
+            positionId = positionId,
+            secret = posobj.secret,
+            attendeeName = posobj.attendee_name,
+            attendeeEmail = posobj.attendee_email,
+            orderCode = jsonorder.getString("code"),
+            orderEmail = jsonorder.optString("email"),
+        )
     }
 
     private fun afterInsertOrUpdatePositionObject(positionId: Long, positionServerId: Long?, jsonobj: JSONObject) {
@@ -253,6 +283,7 @@ class OrderSyncAdapter(
 
     override fun afterPage() {
         super.afterPage()
+        storeStatistics()
 
         checkinCreateCache.forEach {
             db.checkInQueries.insert(
@@ -268,6 +299,85 @@ class OrderSyncAdapter(
     }
 
 
+    override fun afterPageCommit() {
+        invalidateTouchedSecrets()
+        // When streaming, orders are processed in chunks, and we only continue after the last
+        // order that has actually been stored
+        streamedOrderTimestamp?.let { lastOrderTimestamp = it }
+    }
+
+    private fun touchSecrets(secrets: Collection<String>) {
+        touchedSecrets.addAll(secrets)
+        HotTicketCache.forDatabase(db).invalidate(secrets)
+    }
+
+    private fun invalidateTouchedSecrets() {
+        if (touchedSecrets.isNotEmpty()) {
+            HotTicketCache.forDatabase(db).invalidate(touchedSecrets)
+            touchedSecrets.clear()
+        }
+        if (secretChanged) {
+            ReusableMediumIndex.forDatabase(db).invalidate()
+            secretChanged = false
+        }
+    }
+
+    private fun statisticsChanges(): CheckInStatistics.Changes {
+        return statisticsChanges ?: CheckInStatistics.Changes(db).also { statisticsChanges = it }
+    }
+
+    // Called once per page instead of for every order, since the page is written in one transaction
+    private fun storeStatistics() {
+        statisticsChanges?.store()
+        statisticsChanges = null
+    }
+
+    private fun statisticsState(
+        itemId: Long?,
+        variationServerId: Long?,
+        subEventServerId: Long?,
+        order: JSONObject,
+        entryListServerIds: Set<Long>,
+    ) = CheckInStatistics.PositionState(
+        eventSlug = eventSlug,
+        itemId = itemId,
+        variationServerId = variationServerId ?: 0L,
+        subEventServerId = subEventServerId ?: 0L,
+        orderStatus = order.getString("status"),
+        validIfPending = order.optBoolean("valid_if_pending", false),
+        entryListServerIds = entryListServerIds,
+    )
+
+    private fun statisticsState(position: OrderPosition, order: Order) = CheckInStatistics.PositionState(
+        eventSlug = eventSlug,
+        itemId = position.item,
+        variationServerId = position.variation_id ?: 0L,
+        subEventServerId = position.subevent_id ?: 0L,
+        orderStatus = order.status,
+        validIfPending = order.valid_if_pending ?: false,
+        entryListServerIds = checkinCache[position.id].orEmpty()
+            .filter { it.type == "entry" }
+            .mapNotNullTo(HashSet()) { it.listId },
+    )
+
+    private fun statisticsState(posjson: JSONObject, order: JSONObject): CheckInStatistics.PositionState {
+        val checkins = posjson.getJSONArray("checkins")
+        val entryListServerIds = HashSet<Long>()
+        for (i in 0 until checkins.length()) {
+            val ci = checkins.getJSONObject(i)
+            if (ci.optString("type", "entry") == "entry") {
+                entryListServerIds.add(ci.getLong("list"))
+            }
+        }
+        return statisticsState(
+            getItem(posjson.getLong("item"))?.id,
+            posjson.optLong("variation"),
+            posjson.optLong("subevent"),
+            order,
+            entryListServerIds,
+        )
+    }
+
     override fun insert(jsonobj: JSONObject) {
         val json_data = JSONObject(jsonobj.toString())
         json_data.remove("positions")
@@ -287,7 +397,7 @@ class OrderSyncAdapter(
             db.compatQueries.getLastInsertedOrderId().executeAsOne()
         }
 
-        afterInsertOrUpdate(id, jsonobj)
+        afterInsertOrUpdate(id, null, jsonobj)
     }
 
     override fun update(obj: Order, jsonobj: JSONObject) {
@@ -307,10 +417,10 @@ class OrderSyncAdapter(
                 id = obj.id,
         )
 
-        afterInsertOrUpdate(obj.id, jsonobj)
+        afterInsertOrUpdate(obj.id, obj, jsonobj)
     }
 
-    private fun afterInsertOrUpdate(orderId: Long, jsonobj: JSONObject) {
+    private fun afterInsertOrUpdate(orderId: Long, oldOrder: Order?, jsonobj: JSONObject) {
         val known: MutableMap<Long, OrderPosition> = mutableMapOf()
 
         val allPos = db.orderPositionQueries.selectForOrder(orderId).executeAsList()
@@ -320,10 +430,13 @@ class OrderSyncAdapter(
 
         val posarray = jsonobj.getJSONArray("positions")
         val posmap: MutableMap<Long, JSONObject> = java.util.HashMap()
+        val secrets = allPos.mapNotNullTo(HashSet()) { it.secret }
         for (i in 0 until posarray.length()) {
             val posjson = posarray.getJSONObject(i)
             posmap[posjson.getLong("id")] = posjson
+            secrets.add(posjson.optString("secret"))
         }
+        touchSecrets(secrets)
         for (i in 0 until posarray.length()) {
             val posjson = posarray.getJSONObject(i)
             posjson.put("__libpretixsync_dbversion", Migrations.CURRENT_VERSION)
@@ -341,21 +454,78 @@ class OrderSyncAdapter(
             }
             if (posobj != null) {
                 known.remove(jsonid)
+                // Taken before the check-ins of the position are replaced
+                val oldState = statisticsState(posobj, oldOrder!!)
                 if (!JSONUtils.similar(posjson, old)) {
+                    statisticsChanges().replace(oldState, statisticsState(posjson, jsonobj))
                     updatePositionObject(posobj, posjson, orderId, jsonobj, parent)
+                } else {
+                    // Only the order's status might have changed
+                    statisticsChanges().replace(oldState, oldState.copy(
+                        orderStatus = jsonobj.getString("status"),
+                        validIfPending = jsonobj.optBoolean("valid_if_pending", false),
+                    ))
+                    // The order's code or email might have changed, which are part of the index as well
+                    indexPosition(posobj.id, posobj, jsonobj)
                 }
             } else {
+                statisticsChanges().add(statisticsState(posjson, jsonobj))
                 insertPositionObject(posjson, orderId, jsonobj, parent)
             }
         }
         if (known.size > 0) {
+            for (op in known.values) {
+                statisticsChanges().remove(statisticsState(op, oldOrder!!))
+            }
             db.orderPositionQueries.deleteByServerIdList(known.values.map { it.server_id })
         }
     }
 
     override fun deleteUnseen(): Boolean = false
 
+    // Pages with PDF data are several megabytes large
+    override fun streamPages(): Boolean = withPdfData
+
     override fun downloadPage(url: String, isFirstPage: Boolean): JSONObject? {
+        val (resUrl, isContinuedFetch) = pageUrl(url, isFirstPage)
+        val apiResponse = api.fetchResource(resUrl)
+        if (isFirstPage && !isContinuedFetch) {
+            firstResponseTimestamp = apiResponse.response.header("X-Page-Generated")
+        }
+        val d = apiResponse.data
+        if (apiResponse.response.code == 200) {
+            try {
+                val res = d!!.getJSONArray("results")
+                if (res.length() > 0) {
+                    lastOrderTimestamp = res.getJSONObject(res.length() - 1).getString("datetime")
+                }
+            } catch (e: JSONException) {
+                e.printStackTrace()
+            }
+        }
+        return d
+    }
+
+    override fun downloadPageStreaming(url: String, isFirstPage: Boolean, onResult: (JSONObject) -> Unit): PretixApi.PageInfo {
+        val (resUrl, isContinuedFetch) = pageUrl(url, isFirstPage)
+        return api.fetchPage(resUrl, onHeaders = {
+            if (isFirstPage && !isContinuedFetch) {
+                firstResponseTimestamp = it.header("X-Page-Generated")
+            }
+        }) {
+            val datetime = it.optString("datetime")
+            if (datetime.isNotEmpty()) {
+                streamedOrderTimestamp = datetime
+            }
+            onResult(it)
+        }
+    }
+
+    /**
+     * Returns the URL of a page with all filters needed, and whether an interrupted fetch is
+     * continued.
+     */
+    private fun pageUrl(url: String, isFirstPage: Boolean): Pair<String, Boolean> {
         if (isFirstPage) {
             rlm = db.resourceSyncStatusQueries.selectByResourceAndEventSlug(
                 resource = rlmName(),
@@ -439,22 +609,7 @@ class OrderSyncAdapter(
             }
         }
 
-        val apiResponse = api.fetchResource(resUrl)
-        if (isFirstPage && !is_continued_fetch) {
-            firstResponseTimestamp = apiResponse.response.header("X-Page-Generated")
-        }
-        val d = apiResponse.data
-        if (apiResponse.response.code == 200) {
-            try {
-                val res = d!!.getJSONArray("results")
-                if (res.length() > 0) {
-                    lastOrderTimestamp = res.getJSONObject(res.length() - 1).getString("datetime")
-                }
-            } catch (e: JSONException) {
-                e.printStackTrace()
-            }
-        }
-        return d
+        return Pair(resUrl, is_continued_fetch)
     }
 
     private fun getItem(id: Long): Item? {
@@ -525,6 +680,11 @@ class OrderSyncAdapter(
     }
 
     override fun delete(key: String) {
+        val order = db.orderQueries.selectByCode(key).executeAsOneOrNull()
+        if (order != null) {
+            touchSecrets(db.orderPositionQueries.selectForOrder(order.id).executeAsList().mapNotNull { it.secret })
+            statisticsChanges().removeOrders(listOf(order.id))
+        }
         db.orderQueries.deleteByCode(key)
     }
 
@@ -572,6 +732,8 @@ class OrderSyncAdapter(
         }
 
         checkinCreateCache.clear()
+        storeStatistics()
+        invalidateTouchedSecrets()
     }
 
     companion object {
@@ -3,6 +3,7 @@ package eu.pretix.libpretixsync.sync
 import app.cash.sqldelight.TransactionWithoutReturn
 import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.Question
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -63,6 +64,7 @@ class QuestionSyncAdapter(
         }
 
         upsertItemRelations(questionId, emptySet(), jsonobj)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: Question, jsonobj: JSONObject) {
@@ -83,6 +85,7 @@ class QuestionSyncAdapter(
         )
 
         upsertItemRelations(obj.id, existingRelations, jsonobj)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     private fun upsertItemRelations(questionId: Long, existingIds: Set<Long>, jsonobj: JSONObject) {
@@ -118,12 +121,17 @@ class QuestionSyncAdapter(
         val question = db.questionQueries.selectByServerId(key).executeAsOne()
         db.questionQueries.deleteItemRelationsForQuestion(question.id)
         db.questionQueries.deleteByServerId(key)
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
         db.questionQueries.transaction(false, body)
     }
 
+    override fun afterPageCommit() {
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     override fun runBatch(parameterBatch: List<Long>): List<Question> =
         db.questionQueries.selectByServerIdListAndEventSlug(
             server_id = parameterBatch,
@@ -5,6 +5,7 @@ import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.api.ResourceNotModified
+import eu.pretix.libpretixsync.check.ReusableMediumIndex
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.ResourceSyncStatus
 import eu.pretix.libpretixsync.sqldelight.ReusableMedium
@@ -16,6 +17,7 @@ import org.json.JSONException
 import org.json.JSONObject
 import java.io.UnsupportedEncodingException
 import java.net.URLEncoder
+import java.util.Date
 import java.util.concurrent.ExecutionException
 
 class ReusableMediaSyncAdapter(
@@ -37,6 +39,9 @@ class ReusableMediaSyncAdapter(
     private var lastMediumTimestamp: String? = null
     private var rlm: ResourceSyncStatus? = null
 
+    // Changes for ReusableMediumIndex, applied once they are committed
+    private val indexChanges = mutableListOf<(ReusableMediumIndex) -> Unit>()
+
     override fun getResourceName(): String = "reusablemedia"
 
     private fun rlmName(): String = "reusablemedia"
@@ -86,7 +91,8 @@ class ReusableMediaSyncAdapter(
             db.compatQueries.getLastInsertedReusableMediumId().executeAsOne()
         }
 
-        upsertOrderPositionRelations(rmId, emptySet(), jsonobj)
+        val positions = upsertOrderPositionRelations(rmId, emptySet(), jsonobj)
+        recordIndexChange(rmId, jsonobj, expires, positions)
     }
 
     override fun update(obj: ReusableMedium, jsonobj: JSONObject) {
@@ -114,10 +120,31 @@ class ReusableMediaSyncAdapter(
             id = obj.id,
         )
 
-        upsertOrderPositionRelations(obj.id, existingRelations, jsonobj)
+        val positions = upsertOrderPositionRelations(obj.id, existingRelations, jsonobj)
+        recordIndexChange(obj.id, jsonobj, expires, positions)
+    }
+
+    private fun recordIndexChange(rmId: Long, jsonobj: JSONObject, expires: Date?, positions: List<ReusableMediumIndex.LinkedPosition>) {
+        val type = jsonobj.getString("type")
+        val identifier = jsonobj.getString("identifier")
+        val active = jsonobj.getBoolean("active")
+        synchronized(indexChanges) {
+            indexChanges.add { it.put(rmId, type, identifier, active, expires, positions) }
+        }
+    }
+
+    private fun applyIndexChanges() {
+        val index = ReusableMediumIndex.forDatabase(db)
+        synchronized(indexChanges) {
+            indexChanges.forEach { it(index) }
+            indexChanges.clear()
+        }
     }
 
-    private fun upsertOrderPositionRelations(rmId: Long, existingIds: Set<Long>, jsonobj: JSONObject) {
+    /**
+     * Stores the positions linked to the medium and returns them for [ReusableMediumIndex].
+     */
+    private fun upsertOrderPositionRelations(rmId: Long, existingIds: Set<Long>, jsonobj: JSONObject): List<ReusableMediumIndex.LinkedPosition> {
         // backwards compatibility with 'linked_orderposition'
         val orderpositionsarr = jsonobj.optJSONArray("linked_orderpositions")
         val orderpositionids = ArrayList<Long>(orderpositionsarr?.length() ?: 0)
@@ -131,13 +158,12 @@ class ReusableMediaSyncAdapter(
             }
         }
 
-        val newIds = if (orderpositionids.isNotEmpty()) {
-            orderpositionids.mapNotNull {
-                db.orderPositionQueries.selectByServerId(it).executeAsOneOrNull()?.id
-            }.toSet()
+        val linked = if (orderpositionids.isNotEmpty()) {
+            db.reusableMediumQueries.selectLinkablePositions(orderpositionids).executeAsList()
         } else {
-            emptySet()
+            emptyList()
         }
+        val newIds = linked.map { it.id }.toSet()
 
         for (newId in newIds - existingIds) {
             db.reusableMediumQueries.insertOrderPositionRelation(
@@ -151,12 +177,25 @@ class ReusableMediaSyncAdapter(
                 reusablemedium_id = rmId,
             )
         }
+
+        return linked.mapNotNull {
+            val secret = it.secret ?: return@mapNotNull null
+            val eventSlug = it.event_slug ?: return@mapNotNull null
+            ReusableMediumIndex.LinkedPosition(it.id, secret, eventSlug)
+        }
     }
 
     override fun delete(key: Long) {
         val rm = db.reusableMediumQueries.selectByServerId(key).executeAsOne()
         db.reusableMediumQueries.deleteOrderPositionRelationsForReusableMedium(rm.id)
         db.reusableMediumQueries.deleteByServerId(key)
+        synchronized(indexChanges) {
+            indexChanges.add { it.remove(rm.id) }
+        }
+    }
+
+    override fun afterPageCommit() {
+        applyIndexChanges()
     }
 
     override fun deleteUnseen(): Boolean {
@@ -323,6 +362,7 @@ class ReusableMediaSyncAdapter(
                 update(known, data)
             }
         }
+        applyIndexChanges()
     }
 
 }
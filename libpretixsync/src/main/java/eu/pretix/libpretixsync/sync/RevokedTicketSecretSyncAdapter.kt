@@ -5,6 +5,7 @@ import app.cash.sqldelight.db.QueryResult
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.api.ResourceNotModified
+import eu.pretix.libpretixsync.check.TicketSecretFilter
 import eu.pretix.libpretixsync.sqldelight.ResourceSyncStatus
 import eu.pretix.libpretixsync.sqldelight.RevokedTicketSecret
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -67,6 +68,7 @@ class RevokedTicketSecretSyncAdapter(
             secret = jsonobj.getString("secret"),
             server_id = jsonobj.getLong("id"),
         )
+        TicketSecretFilter.forDatabase(db).addRevoked(jsonobj.getString("secret"))
     }
 
     override fun update(obj: RevokedTicketSecret, jsonobj: JSONObject) {
@@ -77,6 +79,7 @@ class RevokedTicketSecretSyncAdapter(
             secret = jsonobj.getString("secret"),
             id = obj.id,
         )
+        TicketSecretFilter.forDatabase(db).addRevoked(jsonobj.getString("secret"))
     }
 
     override fun delete(key: Long) {
@@ -3,6 +3,7 @@ package eu.pretix.libpretixsync.sync
 import app.cash.sqldelight.TransactionWithoutReturn
 import eu.pretix.libpretixsync.api.ApiException
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.CheckContextCache
 import eu.pretix.libpretixsync.sqldelight.Settings
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
 import eu.pretix.libpretixsync.sync.SyncManager.ProgressFeedback
@@ -66,6 +67,7 @@ open class SettingsSyncAdapter(
             vat_id = jsonobj.optString("invoice_address_from_vat_id"),
             zipcode = jsonobj.optString("invoice_address_from_zipcode")
         )
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: Settings, jsonobj: JSONObject) {
@@ -86,12 +88,17 @@ open class SettingsSyncAdapter(
             zipcode = jsonobj.optString("invoice_address_from_zipcode"),
             slug = obj.slug,
         )
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun runInTransaction(body: TransactionWithoutReturn.() -> Unit) {
         db.settingsQueries.transaction(false, body)
     }
 
+    override fun afterDataCommit() {
+        CheckContextCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     private fun processAndUpdateJSONdataWithPicture(jsonobj: JSONObject, fieldName: String, oldFilename: String?): JSONObject {
         if (jsonobj.has(fieldName)) {
             val pictureFilename = processPicture(jsonobj, fieldName, oldFilename)
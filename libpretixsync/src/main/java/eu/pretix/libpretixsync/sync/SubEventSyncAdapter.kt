@@ -2,6 +2,7 @@ package eu.pretix.libpretixsync.sync
 
 import app.cash.sqldelight.TransactionWithoutReturn
 import eu.pretix.libpretixsync.api.PretixApi
+import eu.pretix.libpretixsync.check.DateAnchorCache
 import eu.pretix.libpretixsync.sqldelight.Migrations
 import eu.pretix.libpretixsync.sqldelight.SubEvent
 import eu.pretix.libpretixsync.sqldelight.SyncDatabase
@@ -62,6 +63,7 @@ class SubEventSyncAdapter(
             json_data = jsonobj.toString(),
             server_id = jsonobj.getLong("id"),
         )
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun update(obj: SubEvent, jsonobj: JSONObject) {
@@ -83,6 +85,7 @@ class SubEventSyncAdapter(
             json_data = jsonobj.toString(),
             id = obj.id,
         )
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
     }
 
     override fun getResourceName(): String = "subevents"
@@ -93,6 +96,10 @@ class SubEventSyncAdapter(
         db.subEventQueries.transaction(false, body)
     }
 
+    override fun afterDataCommit() {
+        DateAnchorCache.forDatabase(db).invalidate(eventSlug)
+    }
+
     @Throws(JSONException::class)
     fun standaloneRefreshFromJSON(data: JSONObject) {
         // Store object
@@ -1,6 +1,10 @@
 package eu.pretix.libpretixsync.sync;
 
 import eu.pretix.libpretixsync.api.*;
+import eu.pretix.libpretixsync.check.FailedCheckinLog;
+import eu.pretix.libpretixsync.check.HotTicketCache;
+import eu.pretix.libpretixsync.check.OrderPositionSearchIndex;
+import eu.pretix.libpretixsync.check.ReusableMediumIndex;
 import eu.pretix.libpretixsync.models.Question;
 import eu.pretix.libpretixsync.models.db.QuestionExtensionsKt;
 import eu.pretix.libpretixsync.sqldelight.Closing;
@@ -23,6 +27,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -434,6 +439,9 @@ public class SyncManager {
                     }
                 }
                 if (profile == Profile.PRETIXSCAN && !skip_orders) {
+                    // Index positions synced before the search index existed, that's faster than
+                    // waiting for them to be synced again
+                    OrderPositionSearchIndex.backfill(db);
                     OrderSyncAdapter osa = new OrderSyncAdapter(db, fileStorage, eventSlug, subEvent, with_pdf_data, false, api, configStore.getSyncCycleId(), feedback);
                     download(osa);
                     try {
@@ -468,6 +476,8 @@ public class SyncManager {
                 db.getCompatQueries().truncateCheckIn();
                 db.getCompatQueries().truncateOrderPosition();
                 db.getCompatQueries().truncateOrder();
+                db.getCompatQueries().truncateCheckInStatistic();
+                HotTicketCache.forDatabase(db).invalidateAll();
                 db.getResourceSyncStatusQueries().deleteByResourceFilter("order%");
                 if ((System.currentTimeMillis() - configStore.getLastCleanup()) > 3600 * 1000 * 12) {
                     OrderCleanup oc = new OrderCleanup(db, fileStorage, api, configStore.getSyncCycleId(), feedback);
@@ -486,7 +496,10 @@ public class SyncManager {
             db.getCompatQueries().truncateCheckIn();
             db.getCompatQueries().truncateOrderPosition();
             db.getCompatQueries().truncateOrder();
+            db.getCompatQueries().truncateCheckInStatistic();
+            HotTicketCache.forDatabase(db).invalidateAll();
             db.getCompatQueries().truncateReusableMedium();
+            ReusableMediumIndex.forDatabase(db).invalidate();
             db.getCompatQueries().truncateResourceSyncStatus();
             throw new SyncException(e.getMessage());
         } catch (JSONException e) {
@@ -507,46 +520,72 @@ public class SyncManager {
     protected void uploadQueuedCalls(ProgressFeedback feedback) throws SyncException {
         sentry.addBreadcrumb("sync.queue", "Start queuedcall upload");
 
-
+        try {
+            FailedCheckinLog.forDatabase(db).flush(db);
+        } catch (RuntimeException e) {
+            // The buffered entries are kept and uploaded next time
+            sentry.captureException(e);
+        }
 
         List<QueuedCall> calls = db.getQueuedCallQueries().selectAll().executeAsList();
-        String url = "";
-        int i = 0;
+
+        // Calls are grouped by URL (e.g. all failed check-ins of one check-in list), so if an
+        // endpoint turns out not to exist, we can discard all calls to it without trying each one.
+        Map<String, List<QueuedCall>> callsByUrl = new LinkedHashMap<>();
         for (QueuedCall call : calls) {
-            try {
-                if (feedback != null && i % 10 == 0) {
-                    feedback.postFeedback("Uploading queued calls (" + i + "/" + calls.size() + ") …");
-                }
-                i++;
-                url = call.getUrl();
-                PretixApi.ApiResponse response = api.postResource(
-                        call.getUrl(),
-                        new JSONObject(call.getBody()),
-                        call.getIdempotency_key()
-                );
-                if (response.getResponse().code() < 500) {
+            List<QueuedCall> group = callsByUrl.get(call.getUrl());
+            if (group == null) {
+                group = new ArrayList<>();
+                callsByUrl.put(call.getUrl(), group);
+            }
+            group.add(call);
+        }
+
+        int i = 0;
+        for (Map.Entry<String, List<QueuedCall>> group : callsByUrl.entrySet()) {
+            String url = group.getKey();
+            boolean skipRemaining = false;
+            for (QueuedCall call : group.getValue()) {
+                if (skipRemaining) {
                     db.getQueuedCallQueries().delete(call.getId());
-                    if (response.getResponse().code() >= 400) {
-                        sentry.captureException(new ApiException("Received response (" + response.getResponse().code() + ") for queued call: " + response.getData().toString()));
-                        // We ignore 400s, because we can't do something about them
-                    }
-                } else {
-                    throw new SyncException(response.getData().toString());
+                    i++;
+                    continue;
                 }
-            } catch (JSONException e) {
-                sentry.captureException(e);
-                throw new SyncException("Unknown server response: " + e.getMessage());
-            } catch (NotFoundApiException e) {
-                if (url.contains("/failed_checkins/") || url.contains("/printlog/")) {
-                    // ignore this one: old pretix systems don't have it
-                    db.getQueuedCallQueries().delete(call.getId());
-                } else {
+                try {
+                    if (feedback != null && i % 10 == 0) {
+                        feedback.postFeedback("Uploading queued calls (" + i + "/" + calls.size() + ") …");
+                    }
+                    i++;
+                    PretixApi.ApiResponse response = api.postResource(
+                            call.getUrl(),
+                            new JSONObject(call.getBody()),
+                            call.getIdempotency_key()
+                    );
+                    if (response.getResponse().code() < 500) {
+                        db.getQueuedCallQueries().delete(call.getId());
+                        if (response.getResponse().code() >= 400) {
+                            sentry.captureException(new ApiException("Received response (" + response.getResponse().code() + ") for queued call: " + response.getData().toString()));
+                            // We ignore 400s, because we can't do something about them
+                        }
+                    } else {
+                        throw new SyncException(response.getData().toString());
+                    }
+                } catch (JSONException e) {
+                    sentry.captureException(e);
+                    throw new SyncException("Unknown server response: " + e.getMessage());
+                } catch (NotFoundApiException e) {
+                    if (url.contains("/failed_checkins/") || url.contains("/printlog/")) {
+                        // ignore this one: old pretix systems don't have it
+                        db.getQueuedCallQueries().delete(call.getId());
+                        skipRemaining = true;
+                    } else {
+                        sentry.addBreadcrumb("sync.queue", "API Error: " + e.getMessage());
+                        throw new SyncException(e.getMessage());
+                    }
+                } catch (ApiException e) {
                     sentry.addBreadcrumb("sync.queue", "API Error: " + e.getMessage());
                     throw new SyncException(e.getMessage());
                 }
-            } catch (ApiException e) {
-                sentry.addBreadcrumb("sync.queue", "API Error: " + e.getMessage());
-                throw new SyncException(e.getMessage());
             }
         }
 
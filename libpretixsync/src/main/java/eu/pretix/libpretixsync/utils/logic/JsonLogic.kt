@@ -49,6 +49,15 @@ class JsonLogic {
      */
     fun applyString(logic: String?, data: Any? = null, safe: Boolean = true) = evaluateSafe(logic.parse, data, safe)
 
+    /**
+     * Parse logic once into an evaluator tree that can be applied to any number of data objects.
+     * Operators are resolved at compile time, so operations need to be added before calling this.
+     *
+     * @param logic the logic as a json encoded string
+     * @return compiled logic
+     */
+    fun compile(logic: String?): CompiledLogic = CompiledLogic(compileNode(logic.parse))
+
     /**
      * Add new operations http://jsonlogic.com/add_operation.html
      *
@@ -87,6 +96,82 @@ class JsonLogic {
         }.asList, data)
     }
 
+    /**
+     * Logic that has been parsed and resolved by [compile]. Evaluating it yields the same results as
+     * [apply] with the original logic.
+     */
+    class CompiledLogic internal constructor(private val root: Node) {
+
+        /**
+         * Apply the compiled logic on data and get a result
+         *
+         * @param data the data
+         * @param safe if true an exception is returned as false else exceptions are thrown
+         * @return evaluation result
+         */
+        fun apply(data: Any? = null, safe: Boolean = true): Any? = if (safe) {
+            try {
+                root.evaluate(data)
+            } catch (e: kotlin.NotImplementedError) {
+                false
+            } catch (e: java.lang.Exception) {
+                false
+            }
+        } else root.evaluate(data)
+    }
+
+    internal interface Node {
+        fun evaluate(data: Any?): Any?
+    }
+
+    private class ConstantNode(private val value: Any?) : Node {
+        override fun evaluate(data: Any?) = value
+    }
+
+    private class DataNode : Node {
+        override fun evaluate(data: Any?) = data
+    }
+
+    private class OperationNode(
+            private val operation: (List<Any?>?, Any?) -> Any?,
+            private val arguments: Node
+    ) : Node {
+        override fun evaluate(data: Any?) = operation.invoke(arguments.evaluate(data) as List<Any?>?, data)
+    }
+
+    private class ListNode(private val elements: List<Node>) : Node {
+        override fun evaluate(data: Any?) = elements.map { it.evaluate(data) }
+    }
+
+    private class AsListNode(private val value: Node) : Node {
+        override fun evaluate(data: Any?) = value.evaluate(data).asList
+    }
+
+    private class UnknownOperationNode(private val operator: Any?) : Node {
+        override fun evaluate(data: Any?): Any? = TODO("operator \"$operator\"")
+    }
+
+    // Mirrors the structure of evaluate(), but resolves everything that does not depend on data
+    private fun compileNode(logic: Any?): Node {
+        if (logic !is Map<*, *>) return ConstantNode(logic)
+        if (logic.isNullOrEmpty()) return DataNode()
+        val operator = logic.keys.firstOrNull()
+        val values = logic[operator]
+        val arguments = when (values) {
+            is List<*> -> ListNode(values.map { compileNode(it) })
+            is Map<*, *> -> AsListNode(compileNode(values))
+            else -> ConstantNode(listOf(values))
+        }
+        return if (customOperations.keys.contains(operator))
+            OperationNode(customOperations.getValue(operator as String), arguments)
+        else if (specialArrayOperations.keys.contains(operator))
+            // Array operations evaluate their sub-logic against changing data themselves
+            OperationNode(specialArrayOperations.getValue(operator as String), ConstantNode(values.asList))
+        else if (operations.keys.contains(operator))
+            OperationNode(operations.getValue(operator as String), arguments)
+        else UnknownOperationNode(operator)
+    }
+
     private val customOperations = mutableMapOf<String, (List<Any?>?, Any?) -> Any?>()
 
     private val operations = mapOf<String, (List<Any?>?, Any?) -> Any?>(
@@ -0,0 +1,67 @@
+package eu.pretix.libpretixsync.api
+
+import eu.pretix.pretixscan.scanproxy.tests.test.FakeHttpClientFactory
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class HttpClientRegistryTest {
+    @After
+    fun tearDown() {
+        HttpClientRegistry.shutdown()
+    }
+
+    @Test
+    fun testSharedPerFactory() {
+        val factory = FakeHttpClientFactory()
+        val client = HttpClientRegistry.get(factory, "http://1.1.1.1/", false)
+        assertSame(client, HttpClientRegistry.get(factory, "http://1.1.1.1/", false))
+        assertEquals(1, factory.builtClients)
+
+        assertNotSame(client, HttpClientRegistry.get(factory, "http://2.2.2.2/", false))
+        assertNotSame(client, HttpClientRegistry.get(factory, "http://1.1.1.1/", true))
+        assertEquals(3, factory.builtClients)
+
+        // Another instance may be configured differently, so it does not get the same client
+        val other = FakeHttpClientFactory()
+        assertNotSame(client, HttpClientRegistry.get(other, "http://1.1.1.1/", false))
+        assertEquals(1, other.builtClients)
+    }
+
+    @Test
+    fun testSharedByApis() {
+        val factory = FakeHttpClientFactory()
+        val first = PretixApi("http://1.1.1.1/", "a", "demo", 1, factory)
+        val second = PretixApi("http://1.1.1.1/", "a", "demo", 1, factory)
+
+        factory.respond(200, "{\"count\": 0, \"next\": null, \"results\": []}")
+        first.fetchPage(first.eventResourceUrl("demo", "orders")) { }
+        factory.respond(200, "{\"count\": 0, \"next\": null, \"results\": []}")
+        second.fetchPage(second.eventResourceUrl("demo", "orders")) { }
+        assertEquals(1, factory.builtClients)
+    }
+
+    @Test
+    fun testRebuiltAfterShutdown() {
+        val factory = FakeHttpClientFactory()
+        val api = PretixApi("http://1.1.1.1/", "a", "demo", 1, factory)
+        factory.respond(200, "{\"count\": 0, \"next\": null, \"results\": []}")
+        api.fetchPage(api.eventResourceUrl("demo", "orders")) { }
+        assertEquals(1, factory.builtClients)
+
+        val generation = HttpClientRegistry.generation
+        HttpClientRegistry.shutdown()
+        assertTrue(HttpClientRegistry.generation > generation)
+
+        // The API notices the new generation and does not use the released client
+        factory.respond(200, "{\"count\": 0, \"next\": null, \"results\": []}")
+        api.fetchPage(api.eventResourceUrl("demo", "orders")) { }
+        assertEquals(2, factory.builtClients)
+        factory.respond(200, "{\"count\": 0, \"next\": null, \"results\": []}")
+        api.fetchPage(api.eventResourceUrl("demo", "orders")) { }
+        assertEquals(2, factory.builtClients)
+    }
+}
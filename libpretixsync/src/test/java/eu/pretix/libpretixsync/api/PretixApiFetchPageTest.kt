@@ -0,0 +1,148 @@
+package eu.pretix.libpretixsync.api
+
+import eu.pretix.pretixscan.scanproxy.tests.test.FakeHttpClientFactory
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+
+class PretixApiFetchPageTest {
+    private lateinit var factory: FakeHttpClientFactory
+    private lateinit var api: PretixApi
+
+    @Before
+    fun setUp() {
+        factory = FakeHttpClientFactory()
+        api = PretixApi("http://1.1.1.1/", "a", "demo", 1, factory)
+    }
+
+    @After
+    fun tearDown() {
+        HttpClientRegistry.shutdown()
+    }
+
+    private fun fetch(): Pair<PretixApi.PageInfo, List<JSONObject>> {
+        val results = ArrayList<JSONObject>()
+        val page = api.fetchPage(api.eventResourceUrl("demo", "orders")) {
+            results.add(it)
+        }
+        return Pair(page, results)
+    }
+
+    @Test
+    fun testFetchPage() {
+        val element = """{
+            "code": "ABC12",
+            "total": "23.00",
+            "amount": 23.10,
+            "rate": 0.1000000000000000055511151231257827,
+            "count": 3,
+            "large": 1234567890123,
+            "huge": 12345678901234567890,
+            "negative": -2147483649,
+            "exponent": 1E+5,
+            "null": null,
+            "flag": true,
+            "nested": {"price": "12.50"},
+            "list": [1.50, "x"]
+        }"""
+        val body = """{"count": 3, "next": "http://1.1.1.1/page2", "extra": {"ignored": [1, 2]}, "results": [$element, {"code": "DEF34"}]}"""
+        factory.respond(200, body, "timestamp1")
+
+        var generated: String? = null
+        val results = ArrayList<JSONObject>()
+        val page = api.fetchPage(api.eventResourceUrl("demo", "orders"), onHeaders = { generated = it.header("X-Page-Generated") }) {
+            results.add(it)
+        }
+        assertEquals("http://1.1.1.1/api/v1/organizers/demo/events/demo/orders/", factory.lastRequestUrl)
+        assertEquals("timestamp1", generated)
+        assertEquals(3, page.count)
+        assertEquals("http://1.1.1.1/page2", page.next)
+        assertEquals(2, results.size)
+        assertEquals("DEF34", results[1].getString("code"))
+
+        // Elements must be exactly what parsing the whole page with org.json gives, as before
+        val expected = JSONObject(element)
+        val streamed = results[0]
+        for (key in listOf("code", "total", "amount", "rate", "count", "large", "huge", "negative", "exponent", "null", "flag")) {
+            assertEquals(key, expected.get(key), streamed.get(key))
+        }
+        assertEquals("23.00", streamed.getString("total"))
+        assertEquals(23.1, streamed.getDouble("amount"), 0.0)
+        assertEquals("12.50", streamed.getJSONObject("nested").getString("price"))
+        assertEquals(expected.getJSONArray("list").get(0), streamed.getJSONArray("list").get(0))
+        assertEquals("x", streamed.getJSONArray("list").getString(1))
+    }
+
+    @Test
+    fun testFetchLastPage() {
+        factory.respond(200, """{"count": 0, "next": null, "previous": null, "results": []}""")
+        val (page, results) = fetch()
+        assertEquals(0, page.count)
+        assertNull(page.next)
+        assertEquals(0, results.size)
+    }
+
+    @Test
+    fun testFetchPageServerError() {
+        factory.respond(500, "<html>Internal Server Error</html>")
+        try {
+            fetch()
+            fail("Expected ApiException to be thrown")
+        } catch (e: ApiException) {
+            assertEquals("Server error: 500", e.message)
+        }
+    }
+
+    @Test
+    fun testFetchPageErrorStatus() {
+        factory.respond(404, "Not found")
+        try {
+            fetch()
+            fail("Expected NotFoundApiException to be thrown")
+        } catch (e: NotFoundApiException) {
+        }
+
+        factory.respond(401, """{"detail": "Device access has been revoked."}""")
+        try {
+            fetch()
+            fail("Expected DeviceAccessRevokedException to be thrown")
+        } catch (e: DeviceAccessRevokedException) {
+        }
+
+        // Error responses are JSON objects too, but must never be taken for an empty page
+        factory.respond(400, """{"count": 0, "results": []}""")
+        try {
+            fetch()
+            fail("Expected ApiException to be thrown")
+        } catch (e: ApiException) {
+            assertEquals("Server error: 400", e.message)
+        }
+    }
+
+    @Test
+    fun testFetchPageInvalidJson() {
+        factory.respond(200, """{"count": 2, "next": null, "results": [{"code": "ABC12"}, {"code": "DE""")
+        val results = ArrayList<JSONObject>()
+        try {
+            api.fetchPage(api.eventResourceUrl("demo", "orders")) {
+                results.add(it)
+            }
+            fail("Expected ApiException to be thrown")
+        } catch (e: ApiException) {
+        }
+        // Everything before the broken element has been handed over
+        assertEquals(1, results.size)
+
+        factory.respond(200, """[]""")
+        try {
+            fetch()
+            fail("Expected ApiException to be thrown")
+        } catch (e: ApiException) {
+            assertEquals("Invalid JSON received: no object", e.message)
+        }
+    }
+}
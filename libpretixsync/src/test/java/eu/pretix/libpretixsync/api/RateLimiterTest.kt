@@ -0,0 +1,94 @@
+package eu.pretix.libpretixsync.api
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+class RateLimiterTest {
+    @Test
+    fun testPacingKeepsReserveForInteractive() {
+        val limiter = RateLimiter()
+        limiter.pacing = RateLimiter.Pacing(capacity = 5.0, refillPerSecond = 1.0, interactiveReserve = 2.0)
+
+        // Bulk requests may use the bucket down to the reserve
+        for (i in 0 until 3) {
+            assertEquals(0L, limiter.tryAcquire(RequestPriority.BULK))
+        }
+        val wait = limiter.tryAcquire(RequestPriority.BULK)
+        assertTrue(wait in 1..1000)
+
+        // Interactive requests never wait for tokens
+        for (i in 0 until 5) {
+            assertEquals(0L, limiter.tryAcquire(RequestPriority.INTERACTIVE))
+        }
+    }
+
+    @Test
+    fun testWithoutPacing() {
+        val limiter = RateLimiter()
+        limiter.pacing = null
+        for (i in 0 until 100) {
+            assertEquals(0L, limiter.tryAcquire(RequestPriority.BULK))
+        }
+    }
+
+    @Test
+    fun testDefaultPacingAllowsBurst() {
+        val limiter = RateLimiter()
+        val burst = RateLimiter.DEFAULT_PACING.capacity - RateLimiter.DEFAULT_PACING.interactiveReserve
+        for (i in 0 until burst.toInt()) {
+            assertEquals(0L, limiter.tryAcquire(RequestPriority.BULK))
+        }
+        assertTrue(limiter.tryAcquire(RequestPriority.BULK) > 0)
+    }
+
+    @Test
+    fun testBlock() {
+        val limiter = RateLimiter()
+        limiter.block(500)
+        val wait = limiter.tryAcquire(RequestPriority.INTERACTIVE)
+        assertTrue(wait in 1..500)
+        assertTrue(limiter.tryAcquire(RequestPriority.BULK) in 1..500)
+
+        // A shorter block does not shorten a longer one
+        limiter.block(10)
+        assertTrue(limiter.tryAcquire(RequestPriority.BULK) > 10)
+    }
+
+    @Test
+    fun testAwaitWaitsForBlock() {
+        val limiter = RateLimiter()
+        limiter.block(200)
+        val start = System.currentTimeMillis()
+        limiter.await(RequestPriority.BULK)
+        assertTrue(System.currentTimeMillis() - start >= 150)
+        assertEquals(0L, limiter.tryAcquire(RequestPriority.BULK))
+    }
+
+    @Test
+    fun testAwaitInteractiveBounded() {
+        val limiter = RateLimiter()
+        limiter.block(RateLimiter.INTERACTIVE_MAX_WAIT_MS + 5000)
+        val start = System.currentTimeMillis()
+        try {
+            limiter.await(RequestPriority.INTERACTIVE)
+            fail("Expected RateLimitedException")
+        } catch (e: RateLimitedException) {
+            // Fails right away instead of waiting for a part of the time
+            assertTrue(System.currentTimeMillis() - start < 500)
+        }
+    }
+
+    @Test
+    fun testAwaitBulkBounded() {
+        val limiter = RateLimiter()
+        limiter.block(RateLimiter.BULK_MAX_WAIT_MS + 5000)
+        try {
+            limiter.await(RequestPriority.BULK)
+            fail("Expected RateLimitedException")
+        } catch (e: RateLimitedException) {
+            // expected
+        }
+    }
+}
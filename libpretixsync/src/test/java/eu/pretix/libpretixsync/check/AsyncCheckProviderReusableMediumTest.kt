@@ -15,6 +15,10 @@ import org.junit.Before
 import org.junit.Test
 
 import org.junit.Assert.assertEquals
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 class AsyncCheckProviderReusableMediumTest : BaseDatabaseTest() {
     private var configStore: FakeConfigStore? = null
@@ -53,6 +57,99 @@ class AsyncCheckProviderReusableMediumTest : BaseDatabaseTest() {
         rmsa.standaloneRefreshFromJSON(jsonResource("reusablemedia/mtrmt-medium7.json"))
     }
 
+    @Test
+    fun testIndexUpdatedBySync() {
+        var r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+
+        val medium = jsonResource("reusablemedia/mtrmt-medium2.json")
+        medium.put("identifier", "2223")
+        ReusableMediaSyncAdapter(db, FakeFileStorage(), fakeApi!!, "", null).standaloneRefreshFromJSON(medium)
+
+        r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r.type)
+        r = p!!.check(mapOf("event1" to 35L), "2223")
+        assertEquals(TicketCheckProvider.CheckResult.Type.USED, r.type)
+    }
+
+    @Test
+    fun testLinkedPositionsFromCache() {
+        p!!.setNow(ISODateTimeFormat.dateTime().parseDateTime("2026-01-05T00:00:01.000Z"))
+        var r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+
+        // Both the scanned code and the linked position are cached now
+        val cache = HotTicketCache.forDatabase(db)
+        cache.resetStats()
+        r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.USED, r.type)
+        assertEquals(0L, cache.stats().misses)
+        assertEquals(2L, cache.stats().hits)
+    }
+
+    @Test
+    fun testLinkedPositionSecretChanged() {
+        p!!.setNow(ISODateTimeFormat.dateTime().parseDateTime("2026-01-05T00:00:01.000Z"))
+        // Loads the index with the old secret
+        assertEquals(1, ReusableMediumIndex.forDatabase(db).lookup(db, "barcode", "2222")!!.positions.filter { it.eventSlug == "event1" }.size)
+
+        val order = jsonResource("orders/rmevent1-order1.json")
+        val positions = order.getJSONArray("positions")
+        for (i in 0 until positions.length()) {
+            if (positions.getJSONObject(i).getLong("id") == 18697L) {
+                positions.getJSONObject(i).put("secret", "changedsecret")
+            }
+        }
+        OrderSyncAdapter(db, FakeFileStorage(), "event1", 0, true, false, fakeApi!!, "", null).standaloneRefreshFromJSON(order)
+
+        val r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+        assertEquals("W0JKM", r.orderCode)
+        assertEquals(1L, r.positionId)
+        assertEquals("changedsecret", ReusableMediumIndex.forDatabase(db).lookup(db, "barcode", "2222")!!.positions.first { it.eventSlug == "event1" }.secret)
+    }
+
+    @Test
+    fun testIndexInvalidated() {
+        var r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+
+        // Like SyncManager does when access to the device has been revoked
+        db.compatQueries.truncateReusableMedium()
+        ReusableMediumIndex.forDatabase(db).invalidate()
+
+        r = p!!.check(mapOf("event1" to 35L), "2222")
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r.type)
+    }
+
+    @Test
+    fun testConcurrentScansOfMediumAndSecret() {
+        p!!.setNow(ISODateTimeFormat.dateTime().parseDateTime("2026-01-05T00:00:01.000Z"))
+        // Medium 2222 resolves to the position with this secret in event1
+        val codes = listOf("2222", "t85xbnppabyq3p282eb6cba35n8tgrce")
+        val threads = 10
+        val scansPerThread = 5
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val futures = List(threads) { t ->
+                executor.submit(Callable {
+                    start.await()
+                    List(scansPerThread) { i ->
+                        p!!.check(mapOf("event1" to 35L), codes[(t + i) % codes.size]).type
+                    }
+                })
+            }
+            start.countDown()
+            val results = futures.flatMap { it.get(30, TimeUnit.SECONDS) }
+            assertEquals(1, results.count { it == TicketCheckProvider.CheckResult.Type.VALID })
+            assertEquals(threads * scansPerThread - 1, results.count { it == TicketCheckProvider.CheckResult.Type.USED })
+            assertEquals(1L, db.queuedCheckInQueries.count().executeAsOne())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
     @Test
     fun testMediumNotActive() {
         val r = p!!.check(mapOf("event1" to 35L), "5555")
@@ -1,5 +1,6 @@
 package eu.pretix.libpretixsync.check
 
+import eu.pretix.libpretixsync.DummySentryImplementation
 import eu.pretix.libpretixsync.db.Answer
 import eu.pretix.libpretixsync.db.BaseDatabaseTest
 import eu.pretix.libpretixsync.sync.CheckInListSyncAdapter
@@ -7,21 +8,33 @@ import eu.pretix.libpretixsync.sync.EventSyncAdapter
 import eu.pretix.libpretixsync.sync.ItemSyncAdapter
 import eu.pretix.libpretixsync.sync.OrderSyncAdapter
 import eu.pretix.libpretixsync.sync.QuestionSyncAdapter
+import eu.pretix.libpretixsync.sync.RevokedTicketSecretSyncAdapter
 import eu.pretix.libpretixsync.sync.SubEventSyncAdapter
+import eu.pretix.libpretixsync.sync.SyncManager
 import eu.pretix.pretixscan.scanproxy.tests.test.FakeConfigStore
 import eu.pretix.pretixscan.scanproxy.tests.test.FakeFileStorage
 import eu.pretix.pretixscan.scanproxy.tests.test.FakePretixApi
 import eu.pretix.pretixscan.scanproxy.tests.test.jsonResource
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
 import org.joda.time.format.ISODateTimeFormat
+import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
 import org.junit.Before
 import org.junit.Test
 
 import java.util.ArrayList
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 
 class AsyncCheckProviderTest : BaseDatabaseTest() {
     private var configStore: FakeConfigStore? = null
@@ -95,6 +108,121 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
         assertEquals("kfndgffgyw4tdgcacx6bb3bgemq69cxj", qciList[0].secret)
     }
 
+    @Test
+    fun testPrepare() {
+        val prepared = p!!.prepare(mapOf("demo" to 1L), syntheticChecks = 3)
+        assertEquals(3, prepared.syntheticChecks)
+        assertTrue(prepared.durationNanos > 0)
+
+        // Synthetic checks do not store anything
+        assertEquals(0, db.queuedCheckInQueries.selectAll().executeAsList().size)
+        FailedCheckinLog.forDatabase(db).flush(db)
+        assertEquals(0L, db.queuedCallQueries.count().executeAsOne())
+
+        val r = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+    }
+
+    @Test
+    fun testFailedCheckinLogFlushSize() {
+        val log = FailedCheckinLog.forDatabase(db)
+        for (i in 1 until FailedCheckinLog.FLUSH_SIZE) {
+            log.record(db, "https://example.org/failed_checkins/", "{}", DummySentryImplementation())
+        }
+        assertEquals(0L, db.queuedCallQueries.count().executeAsOne())
+        log.record(db, "https://example.org/failed_checkins/", "{}", DummySentryImplementation())
+        assertEquals(FailedCheckinLog.FLUSH_SIZE.toLong(), db.queuedCallQueries.count().executeAsOne())
+    }
+
+    @Test
+    fun testFailedCheckinLogFlush() {
+        val log = FailedCheckinLog.forDatabase(db)
+        log.record(db, "https://example.org/failed_checkins/", "{}", DummySentryImplementation())
+        assertEquals(0L, db.queuedCallQueries.count().executeAsOne())
+        log.flush(db)
+        assertEquals(1L, db.queuedCallQueries.count().executeAsOne())
+    }
+
+    @Test
+    fun testFailedCheckinLogFlushDelay() {
+        val log = FailedCheckinLog.forDatabase(db)
+        log.flushDelayMillis = 50
+        log.record(db, "https://example.org/failed_checkins/", "{}", DummySentryImplementation())
+        val deadline = System.currentTimeMillis() + 5000
+        while (db.queuedCallQueries.count().executeAsOne() == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertEquals(1L, db.queuedCallQueries.count().executeAsOne())
+    }
+
+    @Test
+    fun testFailedCheckinLogFlushedBeforeUpload() {
+        val r = p!!.check(mapOf("demo" to 1L), "abc")
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r.type)
+        assertEquals(0L, db.queuedCallQueries.count().executeAsOne())
+
+        fakeApi!!.postResponses.add {
+            fakeApi!!.ApiResponse(JSONObject(), Response.Builder()
+                .request(Request.Builder().url("https://foo").build())
+                .code(201)
+                .message("Created")
+                .protocol(Protocol.HTTP_1_1)
+                .build())
+        }
+        val syncManager = object : SyncManager(
+            configStore!!, fakeApi!!, DummySentryImplementation(), db, FakeFileStorage(), 0, 0,
+            SyncManager.Profile.PRETIXSCAN, false, 1, JSONObject(), "", "", "", "", "", "", "", "", null,
+        ) {
+            fun upload() = uploadQueuedCalls(null)
+        }
+        syncManager.upload()
+        assertTrue(fakeApi!!.lastRequestUrl!!.contains("/failed_checkins/"))
+        assertEquals(0L, db.queuedCallQueries.count().executeAsOne())
+    }
+
+    @Test
+    fun testPrepareMissingSubevent() {
+        val list = jsonResource("checkinlists/list2.json")
+        list.put("id", 20)
+        list.put("subevent", 999)
+        CheckInListSyncAdapter(db, FakeFileStorage(), "demo", fakeApi!!, "", null, 0).standaloneRefreshFromJSON(list)
+        p!!.prepare(mapOf("demo" to 20L), syntheticChecks = 0)
+
+        list.put("rules", JSONObject("{\"isAfter\": [{\"var\": \"now\"}, {\"buildTime\": [\"date_admission\"]}, 0]}"))
+        CheckInListSyncAdapter(db, FakeFileStorage(), "demo", fakeApi!!, "", null, 0).standaloneRefreshFromJSON(list)
+        p!!.prepare(mapOf("demo" to 20L), syntheticChecks = 0)
+    }
+
+    @Test
+    fun testHotTicketCache() {
+        val cache = HotTicketCache.forDatabase(db)
+        cache.invalidateAll()
+        cache.resetStats()
+
+        val r1 = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r1.type)
+        // The position is served from the cache, the check-in is still seen
+        val r2 = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.USED, r2.type)
+
+        val stats = cache.stats()
+        assertEquals(1L, stats.hits)
+        assertEquals(1L, stats.misses)
+        assertEquals(0.5, stats.hitRate, 0.0001)
+    }
+
+    @Test
+    fun testHotTicketCacheOrderDeleted() {
+        HotTicketCache.forDatabase(db).invalidateAll()
+
+        val r1 = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r1.type)
+        // The cached position is stale now
+        db.compatQueries.truncateOrder()
+        val r2 = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r2.type)
+    }
+
     @Test
     fun testSimpleSuccessFilteredList() {
         val r = p!!.check(mapOf("demo" to 10L), "order10_item1_secret_verysecret")
@@ -222,6 +350,59 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
 
     // TODO: invalid subevent
 
+    @Test
+    fun testBatch() {
+        val r = p!!.checkBatch(mapOf("demo" to 1L), listOf(
+            TicketCheckProvider.ScanRequest("kfndgffgyw4tdgcacx6bb3bgemq69cxj"),
+            TicketCheckProvider.ScanRequest("abc"),
+            TicketCheckProvider.ScanRequest("kfndgffgyw4tdgcacx6bb3bgemq69cxj"),
+        ))
+        assertEquals(3, r.size)
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r[0].type)
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r[1].type)
+        assertEquals(TicketCheckProvider.CheckResult.Type.USED, r[2].type)
+        assertEquals(1L, db.queuedCheckInQueries.count().executeAsOne())
+    }
+
+    @Test
+    fun testConcurrentScansOfSameTicket() {
+        val threads = 10
+        val scansPerThread = 5
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val futures = List(threads) {
+                executor.submit(Callable {
+                    start.await()
+                    List(scansPerThread) {
+                        p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj").type
+                    }
+                })
+            }
+            start.countDown()
+            val results = futures.flatMap { it.get(30, TimeUnit.SECONDS) }
+            assertEquals(1, results.count { it == TicketCheckProvider.CheckResult.Type.VALID })
+            assertEquals(threads * scansPerThread - 1, results.count { it == TicketCheckProvider.CheckResult.Type.USED })
+            assertEquals(1L, db.queuedCheckInQueries.count().executeAsOne())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testTimings() {
+        val histogram = CheckTimingHistogram()
+        p!!.setTimingListener(histogram)
+        p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        val snapshot = histogram.snapshot()
+        assertEquals(2L, snapshot.total.count)
+        assertEquals(2L, snapshot.stages[CheckStage.POSITION_LOOKUP]?.count)
+        assertEquals(2L, snapshot.stages[CheckStage.STORE]?.count)
+        assertEquals(1L, snapshot.resultTypes[TicketCheckProvider.CheckResult.Type.VALID])
+        assertEquals(1L, snapshot.resultTypes[TicketCheckProvider.CheckResult.Type.USED])
+    }
+
     @Test
     fun testSimpleRedeemed() {
         val r = p!!.check(mapOf("demo" to 1L), "g2sc5ym78h5q5y5sbswses2b5h8pp6kt")
@@ -330,6 +511,7 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
             json_data = j.toString(),
             id = cl.id,
         )
+        CheckContextCache.forDatabase(db).invalidate(cl.event_slug!!)
     }
 
     @Test
@@ -999,6 +1181,8 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
         assertEquals(0, srList.size.toLong())
         srList = p!!.search(mapOf("demo" to 1L), "WATSON", 1)
         assertEquals(1, srList.size.toLong())
+        srList = p!!.search(mapOf("demo" to 1L), "wätson", 1)
+        assertEquals(1, srList.size.toLong())
 
         // Search by email
         srList = p!!.search(mapOf("demo" to 1L), "foobar@example.org", 1)
@@ -1041,6 +1225,116 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
         assertEquals(0, i.variations!!.size)
     }
 
+    @Test
+    fun testStatusInfoAfterLocalCheckIn() {
+        val before = p!!.status("demo", 1L)
+        val r = p!!.check(mapOf("demo" to 1L), "kfndgffgyw4tdgcacx6bb3bgemq69cxj")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+
+        val after = p!!.status("demo", 1L)
+        assertEquals(before.totalTickets, after.totalTickets)
+        assertEquals(before.alreadyScanned + 1, after.alreadyScanned)
+
+        // The incrementally updated statistics match a full rebuild
+        CheckInStatistics.invalidate(db, "demo")
+        val rebuilt = p!!.status("demo", 1L)
+        assertEquals(after.totalTickets, rebuilt.totalTickets)
+        assertEquals(after.alreadyScanned, rebuilt.alreadyScanned)
+    }
+
+    @Test
+    fun testStatusInfoAfterTruncate() {
+        val before = p!!.status("demo", 1L)
+        assertEquals(20, before.totalTickets)
+
+        // Like the online profile does on every sync
+        db.compatQueries.truncateCheckIn()
+        db.compatQueries.truncateOrderPosition()
+        db.compatQueries.truncateOrder()
+        db.compatQueries.truncateCheckInStatistic()
+
+        val after = p!!.status("demo", 1L)
+        assertEquals(0, after.totalTickets)
+        assertEquals(0, after.alreadyScanned)
+    }
+
+    private fun statusCounts(listId: Long): List<Any> {
+        val sr = p!!.status("demo", listId)
+        return listOf(sr.totalTickets, sr.alreadyScanned) + sr.items!!.map {
+            listOf(it.id, it.total, it.checkins) + it.variations!!.map { v -> listOf(v.id, v.total, v.checkins) }
+        }
+    }
+
+    private fun assertStatisticsMatchRebuild(listId: Long) {
+        val incremental = statusCounts(listId)
+        CheckInStatistics.invalidate(db, "demo")
+        assertEquals(statusCounts(listId), incremental)
+    }
+
+    @Test
+    fun testStatusInfoUpdatedBySync() {
+        val before = p!!.status("demo", 1L)
+        assertEquals(20, before.totalTickets)
+        assertEquals(2, before.alreadyScanned)
+
+        val osa = OrderSyncAdapter(db, FakeFileStorage(), "demo", 0, true, false, fakeApi!!, "", null)
+        // Canceled, removes three positions, one of them checked in
+        val order1 = jsonResource("orders/order1.json")
+        order1.put("status", "c")
+        osa.standaloneRefreshFromJSON(order1)
+        // A check-in by another device, and a position removed
+        val order3 = jsonResource("orders/order3.json")
+        val position = order3.getJSONArray("positions").getJSONObject(0)
+        position.getJSONArray("checkins").put(JSONObject().put("id", 999).put("list", 1).put("datetime", "2019-03-04T17:34:38Z"))
+        order3.put("positions", JSONArray().put(position))
+        osa.standaloneRefreshFromJSON(order3)
+
+        // Updated without a rebuild
+        assertEquals(1L, db.checkInStatisticQueries.countStateForList(1L).executeAsOne())
+        val after = p!!.status("demo", 1L)
+        assertEquals(16, after.totalTickets)
+        assertEquals(2, after.alreadyScanned)
+        assertStatisticsMatchRebuild(1L)
+    }
+
+    @Test
+    fun testStatusInfoAfterOrderCleanup() {
+        p!!.status("demo", 1L)
+        val order = db.orderQueries.selectByCode("VH3D3").executeAsOne()
+        db.transaction {
+            CheckInStatistics.Changes(db).apply {
+                removeOrders(listOf(order.id))
+                store()
+            }
+            db.orderCleanupQueries.deleteOrders(listOf(order.id))
+        }
+
+        assertEquals(1L, db.checkInStatisticQueries.countStateForList(1L).executeAsOne())
+        assertEquals(17, p!!.status("demo", 1L).totalTickets)
+        assertStatisticsMatchRebuild(1L)
+    }
+
+    @Test
+    fun testStatusInfoAfterListChange() {
+        p!!.status("demo", 1L)
+        p!!.status("demo", 2L)
+        val lsa = CheckInListSyncAdapter(db, FakeFileStorage(), "demo", fakeApi!!, "", null, 0)
+
+        // Does not affect which positions are counted
+        val renamed = jsonResource("checkinlists/list1.json")
+        renamed.put("name", "Renamed")
+        lsa.standaloneRefreshFromJSON(renamed)
+        assertEquals(1L, db.checkInStatisticQueries.countStateForList(1L).executeAsOne())
+
+        val withoutPending = jsonResource("checkinlists/list1.json")
+        withoutPending.put("include_pending", false)
+        lsa.standaloneRefreshFromJSON(withoutPending)
+        assertEquals(0L, db.checkInStatisticQueries.countStateForList(1L).executeAsOne())
+        // Other lists are kept
+        assertEquals(1L, db.checkInStatisticQueries.countStateForList(2L).executeAsOne())
+        assertStatisticsMatchRebuild(1L)
+    }
+
     @Test
     fun testSignedAndValid() {
         val r = p!!.check(mapOf("demo" to 1L), "E4BibyTSylQOgeKjuMPiTDxi5HXPuTVsx1qCli3IL0143gj0EZXOB9iQInANxRFJTt4Pf9nXnHdB91Qk/RN0L5AIBABSxw2TKFnSUNUCKAEAPAQA")
@@ -1117,6 +1411,22 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
         assertEquals(db.queuedCheckInQueries.count().executeAsOne(), 0L)
     }
 
+    @Test
+    fun testSignedRevokedAfterFirstScan() {
+        var r = p!!.check(mapOf("demo" to 1L), "E4BibyTSylQOgeKjuMPiTDxi5HXPuTVsx1qCli3IL0143gj0EZXOB9iQInANxRFJTt4Pf9nXnHdB91Qk/RN0L5AIBABSxw2TKFnSUNUCKAEAPAQA")
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+
+        RevokedTicketSecretSyncAdapter(db, FakeFileStorage(), "demo", fakeApi!!, "", null).insert(
+            JSONObject()
+                .put("id", 1L)
+                .put("created", "2020-10-19T10:00:00+00:00")
+                .put("secret", "E4BibyTSylQOgeKjuMPiTDxi5HXPuTVsx1qCli3IL0143gj0EZXOB9iQInANxRFJTt4Pf9nXnHdB91Qk/RN0L5AIBABSxw2TKFnSUNUCKAEAPAQA")
+        )
+
+        r = p!!.check(mapOf("demo" to 1L), "E4BibyTSylQOgeKjuMPiTDxi5HXPuTVsx1qCli3IL0143gj0EZXOB9iQInANxRFJTt4Pf9nXnHdB91Qk/RN0L5AIBABSxw2TKFnSUNUCKAEAPAQA")
+        assertEquals(TicketCheckProvider.CheckResult.Type.REVOKED, r.type)
+    }
+
     @Test
     fun testSignedUnknownProduct() {
         val r = p!!.check(mapOf("demo" to 1L), "OUmw2Ro3YOMQ4ktAlAIsDVe4Xsr1KXla/0SZVN34qIZWtUX0hx1DXDHxaCatGTNzOeCMjHQABR5E6ESCOOx1g7AIkBhVkdDdJJTVSZWCKAEAPAQA")
@@ -1131,6 +1441,61 @@ class AsyncCheckProviderTest : BaseDatabaseTest() {
         assertEquals(db.queuedCheckInQueries.count().executeAsOne(), 0L)
     }
 
+    @Test
+    @Throws(CheckException::class)
+    fun testSearchWithCursor() {
+        configStore!!.setAllow_search(true)
+
+        val byPage = p!!.search(mapOf("demo" to 1L), "Vh3d3", 1)
+        val first = p!!.search(mapOf("demo" to 1L), "Vh3d3", null as String?)
+        assertEquals(byPage.map { it.secret }, first.results.map { it.secret })
+        // Fewer results than fit on a page
+        assertEquals(null, first.cursor)
+
+        // Continuing after the first result returns the others
+        val firstId = db.orderPositionQueries.selectBySecretAndEventSlugs(
+            secret = byPage[0].secret,
+            event_slugs = listOf("demo"),
+        ).executeAsOne().id
+        val rest = p!!.search(mapOf("demo" to 1L), "Vh3d3", firstId.toString())
+        assertEquals(byPage.drop(1).map { it.secret }, rest.results.map { it.secret })
+    }
+
+    @Test
+    fun testSearchMidWord() {
+        configStore!!.setAllow_search(true)
+        assertTrue(OrderPositionSearchIndex.isComplete(db))
+
+        // Queries do not need to start at the beginning of a word
+        var srList = p!!.search(mapOf("demo" to 1L), "atson", 1)
+        assertEquals(1, srList.size.toLong())
+        srList = p!!.search(mapOf("demo" to 1L), "ÄTSON", 1)
+        assertEquals(1, srList.size.toLong())
+        srList = p!!.search(mapOf("demo" to 1L), "olmesConnie@kelly", 1)
+        assertEquals(3, srList.size.toLong())
+        srList = p!!.search(mapOf("demo" to 1L), "ndgffgyw4", 1)
+        assertEquals(1, srList.size.toLong())
+        srList = p!!.search(mapOf("demo" to 1L), "atsonx", 1)
+        assertEquals(0, srList.size.toLong())
+    }
+
+    @Test
+    fun testSearchIndexBackfill() {
+        configStore!!.setAllow_search(true)
+
+        // Like after the upgrade that introduced the index
+        db.orderPositionSearchQueries.testDeleteAllTokens()
+        db.orderPositionSearchQueries.testDeleteAllTexts()
+        assertFalse(OrderPositionSearchIndex.isComplete(db))
+        var srList = p!!.search(mapOf("demo" to 1L), "holmesConnie@kelly.com", 1)
+        assertEquals(3, srList.size.toLong())
+
+        OrderPositionSearchIndex.backfill(db)
+        assertTrue(OrderPositionSearchIndex.isComplete(db))
+        srList = p!!.search(mapOf("demo" to 1L), "holmesConnie@kelly.com", 1)
+        assertEquals(3, srList.size.toLong())
+    }
+
     @Test
     @Throws(CheckException::class)
     fun testSearchMultipleLists() {
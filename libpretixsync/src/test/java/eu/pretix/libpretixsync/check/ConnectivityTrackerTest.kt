@@ -0,0 +1,117 @@
+package eu.pretix.libpretixsync.check
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ConnectivityTrackerTest {
+    @Test
+    fun testErrorsSwitchToOfflineFirst() {
+        val t = ConnectivityTracker()
+        t.recordError()
+        t.recordError()
+        assertFalse(t.isOfflineFirst)
+
+        // Errors need to be consecutive
+        t.recordSuccess(100)
+        t.recordError()
+        t.recordError()
+        assertFalse(t.isOfflineFirst)
+        t.recordError()
+        assertTrue(t.isOfflineFirst)
+    }
+
+    @Test
+    fun testRecoveryNeedsFastSuccesses() {
+        val t = ConnectivityTracker()
+        repeat(3) { t.recordError() }
+        assertTrue(t.isOfflineFirst)
+
+        t.recordSuccess(500)
+        t.recordSuccess(500)
+        assertTrue(t.isOfflineFirst)
+
+        // Slower than recoveredMillis, starts over
+        t.recordSuccess(1500)
+        t.recordSuccess(500)
+        t.recordSuccess(500)
+        assertTrue(t.isOfflineFirst)
+
+        // Also starts over after an error
+        t.recordError()
+        t.recordSuccess(500)
+        t.recordSuccess(500)
+        assertTrue(t.isOfflineFirst)
+
+        t.recordSuccess(500)
+        assertFalse(t.isOfflineFirst)
+    }
+
+    @Test
+    fun testSlowServerSwitchesToOfflineFirst() {
+        val t = ConnectivityTracker()
+        // Not before enough latencies have been recorded
+        repeat(9) { t.recordSuccess(3000) }
+        assertFalse(t.isOfflineFirst)
+        t.recordSuccess(3000)
+        assertTrue(t.isOfflineFirst)
+
+        // Fast successes alone are not enough while the average is still above recoveredMillis:
+        // after n successes of 500 ms, the EWMA is 3000 - 2500 * (1 - 0.8^n)
+        repeat(7) { t.recordSuccess(500) }
+        assertTrue(t.isOfflineFirst)
+        t.recordSuccess(500)
+        assertFalse(t.isOfflineFirst)
+    }
+
+    @Test
+    fun testMissingDurationIgnored() {
+        val t = ConnectivityTracker()
+        repeat(3) { t.recordError() }
+        repeat(5) { t.recordSuccess(null) }
+        assertTrue(t.isOfflineFirst)
+        assertNull(t.statistics().ewmaMillis)
+    }
+
+    @Test
+    fun testCallTimeout() {
+        val t = ConnectivityTracker()
+        assertEquals(5000, t.callTimeout(5000))
+
+        repeat(9) { t.recordSuccess(1000) }
+        assertEquals(5000, t.callTimeout(5000))
+
+        t.recordSuccess(1000)
+        assertEquals(3000, t.callTimeout(5000))
+        // Never more than the maximum
+        assertEquals(2000, t.callTimeout(2000))
+    }
+
+    @Test
+    fun testCallTimeoutBounds() {
+        val t = ConnectivityTracker()
+        repeat(10) { t.recordSuccess(100) }
+        // 3 * p95 would be 300 ms, which is below minTimeoutMillis
+        assertEquals(1500, t.callTimeout(5000))
+        // Unless the maximum is even lower
+        assertEquals(1000, t.callTimeout(1000))
+
+        val slow = ConnectivityTracker()
+        repeat(10) { slow.recordSuccess(4000) }
+        assertEquals(5000, slow.callTimeout(5000))
+    }
+
+    @Test
+    fun testCallTimeoutUsesP95() {
+        val t = ConnectivityTracker()
+        repeat(19) { t.recordSuccess(100) }
+        t.recordSuccess(10000)
+        // A single outlier in 20 requests does not affect the 95th percentile
+        assertEquals(1500, t.callTimeout(30000))
+
+        t.recordSuccess(10000)
+        assertEquals(30000, t.callTimeout(30000))
+    }
+}
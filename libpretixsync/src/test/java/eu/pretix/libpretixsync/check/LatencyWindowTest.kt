@@ -0,0 +1,59 @@
+package eu.pretix.libpretixsync.check
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class LatencyWindowTest {
+    @Test
+    fun testEmpty() {
+        val w = LatencyWindow(10)
+        assertNull(w.percentile(0.5, 0))
+        assertNull(w.percentile(0.5, 1))
+    }
+
+    @Test
+    fun testMinSamples() {
+        val w = LatencyWindow(10)
+        w.record(100)
+        w.record(200)
+        assertNull(w.percentile(0.5, 3))
+        w.record(300)
+        assertEquals(200L, w.percentile(0.5, 3))
+    }
+
+    @Test
+    fun testPercentiles() {
+        val w = LatencyWindow(100)
+        for (i in 100 downTo 1) {
+            w.record(i.toLong())
+        }
+        assertEquals(50L, w.percentile(0.5, 1))
+        assertEquals(95L, w.percentile(0.95, 1))
+        assertEquals(100L, w.percentile(1.0, 1))
+        assertEquals(1L, w.percentile(0.0, 1))
+    }
+
+    @Test
+    fun testNearestRank() {
+        val w = LatencyWindow(10)
+        w.record(10)
+        w.record(20)
+        w.record(30)
+        // ceil(0.5 * 3) = 2nd value, ceil(0.95 * 3) = 3rd value
+        assertEquals(20L, w.percentile(0.5, 1))
+        assertEquals(30L, w.percentile(0.95, 1))
+        assertEquals(10L, w.percentile(0.3, 1))
+    }
+
+    @Test
+    fun testOldestOverwritten() {
+        val w = LatencyWindow(3)
+        w.record(1000)
+        w.record(1)
+        w.record(2)
+        w.record(3)
+        assertEquals(3L, w.percentile(1.0, 3))
+        assertEquals(1L, w.percentile(0.0, 3))
+    }
+}
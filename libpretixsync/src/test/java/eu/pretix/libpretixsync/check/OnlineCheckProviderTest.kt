@@ -0,0 +1,195 @@
+package eu.pretix.libpretixsync.check
+
+import eu.pretix.libpretixsync.SentryInterface
+import eu.pretix.libpretixsync.api.HttpClientFactory
+import eu.pretix.libpretixsync.api.HttpClientRegistry
+import eu.pretix.libpretixsync.db.Answer
+import eu.pretix.libpretixsync.db.BaseDatabaseTest
+import eu.pretix.libpretixsync.sync.CheckInListSyncAdapter
+import eu.pretix.libpretixsync.sync.EventSyncAdapter
+import eu.pretix.libpretixsync.sync.ItemSyncAdapter
+import eu.pretix.libpretixsync.sync.OrderSyncAdapter
+import eu.pretix.pretixscan.scanproxy.tests.test.FakeConfigStore
+import eu.pretix.pretixscan.scanproxy.tests.test.FakeFileStorage
+import eu.pretix.pretixscan.scanproxy.tests.test.FakePretixApi
+import eu.pretix.pretixscan.scanproxy.tests.test.jsonResource
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.toResponseBody
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class OnlineCheckProviderTest : BaseDatabaseTest() {
+    private var configStore: FakeConfigStore? = null
+    private var fallback: AsyncCheckProvider? = null
+    private val evaluations = AtomicInteger()
+    private val factory = DelayedResponseFactory()
+
+    // Answers every request of the online provider with a successful check-in after responseDelay
+    class DelayedResponseFactory : HttpClientFactory {
+        @Volatile
+        var responseDelay = 0L
+
+        override fun buildClient(ignore_ssl: Boolean): OkHttpClient {
+            return OkHttpClient.Builder()
+                .addInterceptor { chain ->
+                    Thread.sleep(responseDelay)
+                    Response.Builder()
+                        .request(chain.request())
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(201)
+                        .message("Created")
+                        .body("{\"status\": \"ok\"}".toResponseBody("application/json".toMediaType()))
+                        .build()
+                }
+                .build()
+        }
+    }
+
+    @Before
+    fun setUpFakes() {
+        configStore = FakeConfigStore()
+        val fakeApi = FakePretixApi()
+        fallback = AsyncCheckProvider(configStore!!, db)
+
+        EventSyncAdapter(db, FakeFileStorage(), "demo", "demo", fakeApi, "", null).standaloneRefreshFromJSON(jsonResource("events/event1.json"))
+        ItemSyncAdapter(db, FakeFileStorage(), "demo", fakeApi, "", null).standaloneRefreshFromJSON(jsonResource("items/item1.json"))
+        ItemSyncAdapter(db, FakeFileStorage(), "demo", fakeApi, "", null).standaloneRefreshFromJSON(jsonResource("items/item2.json"))
+        ItemSyncAdapter(db, FakeFileStorage(), "demo", fakeApi, "", null).standaloneRefreshFromJSON(jsonResource("items/item3.json"))
+        CheckInListSyncAdapter(db, FakeFileStorage(), "demo", fakeApi, "", null, 0).standaloneRefreshFromJSON(
+            jsonResource("checkinlists/list1.json")
+        )
+        OrderSyncAdapter(db, FakeFileStorage(), "demo", 0, true, false, fakeApi, "", null).standaloneRefreshFromJSON(
+            jsonResource("orders/order1.json")
+        )
+    }
+
+    @After
+    fun tearDownClients() {
+        HttpClientRegistry.shutdown()
+    }
+
+    private fun hedgedProvider(deadline: Int): OnlineCheckProvider {
+        // Counts the speculative evaluations of the fallback
+        val countingFallback = object : TicketCheckProvider by fallback!! {
+            override fun evaluate(
+                eventsAndCheckinLists: Map<String, Long>,
+                ticketid: String,
+                source_type: String,
+                answers: List<Answer>?,
+                ignore_unpaid: Boolean,
+                type: TicketCheckProvider.CheckInType,
+                allowQuestions: Boolean,
+            ): TicketCheckProvider.CheckResult? {
+                evaluations.incrementAndGet()
+                return fallback!!.evaluate(eventsAndCheckinLists, ticketid, source_type, answers, ignore_unpaid, type, allowQuestions)
+            }
+        }
+        return OnlineCheckProvider(configStore!!, factory, db, FakeFileStorage(), countingFallback, 10000, deadline)
+    }
+
+    private fun check(provider: OnlineCheckProvider, secret: String = "kfndgffgyw4tdgcacx6bb3bgemq69cxj"): TicketCheckProvider.CheckResult {
+        return provider.check(
+            mapOf("demo" to 1L), secret, "barcode", ArrayList(), false, false,
+            TicketCheckProvider.CheckInType.ENTRY, nonce = "hedged-nonce"
+        )
+    }
+
+    // Records the messages of captured exceptions
+    class CapturingSentry : SentryInterface {
+        val messages = ArrayList<String>()
+        val captured = CountDownLatch(1)
+
+        override fun addHttpBreadcrumb(url: String?, method: String?, statusCode: Int) {}
+
+        override fun addBreadcrumb(a: String?, b: String?) {}
+
+        override fun captureException(t: Throwable?) {
+            captureException(t, t?.message)
+        }
+
+        override fun captureException(t: Throwable?, message: String?) {
+            synchronized(messages) {
+                messages.add(message ?: "")
+            }
+            captured.countDown()
+        }
+    }
+
+    @Test
+    fun testHedgedServerAnswersInTime() {
+        val r = check(hedgedProvider(2000))
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+        assertEquals(0, evaluations.get())
+        assertEquals(0, db.queuedCheckInQueries.selectAll().executeAsList().size)
+    }
+
+    @Test
+    fun testHedgedServerSlowerThanUsual() {
+        // Without recorded latencies, the fallback is prepared after half of the deadline
+        factory.responseDelay = 2000
+        val r = check(hedgedProvider(3000))
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+        // The fallback evaluated the scan, but the server's answer was used
+        assertEquals(1, evaluations.get())
+        assertEquals(0, db.queuedCheckInQueries.selectAll().executeAsList().size)
+    }
+
+    @Test
+    fun testHedgedServerPassesDeadline() {
+        factory.responseDelay = 3000
+        val start = System.currentTimeMillis()
+        val r = check(hedgedProvider(1000))
+        assertTrue(System.currentTimeMillis() - start < 2500)
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+        assertEquals(1, evaluations.get())
+
+        // The fallback took over with the same nonce
+        val queued = db.queuedCheckInQueries.selectAll().executeAsList()
+        assertEquals(1, queued.size)
+        assertEquals("hedged-nonce", queued[0].nonce)
+    }
+
+    @Test
+    fun testHedgedLateResponseDisagrees() {
+        val sentry = CapturingSentry()
+        val p = hedgedProvider(500)
+        p.setSentry(sentry)
+
+        // Unknown offline, but accepted by the server after the fallback took over
+        factory.responseDelay = 1500
+        val r = check(p, "unknownsecret")
+        assertEquals(TicketCheckProvider.CheckResult.Type.INVALID, r.type)
+
+        assertTrue(sentry.captured.await(10, TimeUnit.SECONDS))
+        synchronized(sentry.messages) {
+            assertEquals(1, sentry.messages.size)
+            assertTrue(sentry.messages[0].contains("offline INVALID"))
+        }
+    }
+
+    @Test
+    fun testHedgedThresholdFromLatencies() {
+        val p = hedgedProvider(2000)
+        repeat(10) {
+            check(p)
+        }
+        assertEquals(0, evaluations.get())
+
+        // The usual latency is close to zero now, so the fallback is prepared for a response that
+        // is still well within the deadline
+        factory.responseDelay = 500
+        val r = check(p)
+        assertEquals(TicketCheckProvider.CheckResult.Type.VALID, r.type)
+        assertEquals(1, evaluations.get())
+        assertEquals(0, db.queuedCheckInQueries.selectAll().executeAsList().size)
+    }
+}
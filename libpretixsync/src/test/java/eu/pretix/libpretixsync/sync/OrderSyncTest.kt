@@ -1,15 +1,19 @@
 package eu.pretix.libpretixsync.sync
 
 import eu.pretix.libpretixsync.api.ApiException
+import eu.pretix.libpretixsync.api.HttpClientRegistry
+import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.db.BaseDatabaseTest
 import eu.pretix.pretixscan.scanproxy.tests.test.FakeConfigStore
 import eu.pretix.pretixscan.scanproxy.tests.test.FakeFileStorage
+import eu.pretix.pretixscan.scanproxy.tests.test.FakeHttpClientFactory
 import eu.pretix.pretixscan.scanproxy.tests.test.FakePretixApi
 import eu.pretix.pretixscan.scanproxy.tests.test.jsonResource
 import okhttp3.*
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import org.json.JSONArray
 import org.json.JSONObject
+import org.junit.After
 import org.junit.Before
 import org.junit.Test
 
@@ -32,6 +36,11 @@ class OrderSyncTest : BaseDatabaseTest() {
         )
     }
 
+    @After
+    fun tearDownClients() {
+        HttpClientRegistry.shutdown()
+    }
+
     private fun response(data: JSONObject, generated: String): Response {
         return Response.Builder()
                 .request(Request.Builder().url("https://foo").build())
@@ -361,4 +370,58 @@ class OrderSyncTest : BaseDatabaseTest() {
         assertEquals(rlm2.last_modified, "timestamp2")
         assertEquals(rlm2.status, "complete")
     }
+
+    private fun streamedOrder(i: Int): JSONObject {
+        val code = "S%04d".format(i)
+        val order = jsonResource("orders/order1.json")
+        val position = order.getJSONArray("positions").getJSONObject(0)
+        position.put("id", 100000 + i)
+        position.put("order", code)
+        position.put("secret", "streamed$i")
+        position.put("checkins", JSONArray())
+        order.put("code", code)
+        order.put("datetime", "2019-02-01T00:%02d:00Z".format(i))
+        order.put("positions", JSONArray().put(position))
+        return order
+    }
+
+    @Test
+    fun testStreamedInterruptedResume() {
+        // Goes through the actual parsing of PretixApi, unlike FakePretixApi
+        val factory = FakeHttpClientFactory()
+        val api = PretixApi("http://1.1.1.1/", "a", "demo", 1, factory)
+        val streamingOsa = OrderSyncAdapter(db, FakeFileStorage(), "demo", 0, true, false, api, "", null)
+
+        // Cut off after the first chunk of 50 orders has been handed over, in the middle of an order
+        val orders = (0 until 55).joinToString(",") { streamedOrder(it).toString() }
+        factory.respond(200, "{\"count\": 60, \"next\": null, \"results\": [$orders, {\"code\": \"S00", "timestamp1")
+
+        try {
+            streamingOsa.download()
+            fail("Expected ApiException to be thrown")
+        } catch (e: ApiException) {
+        }
+        assertEquals("http://1.1.1.1/api/v1/organizers/demo/events/demo/orders/?testmode=false&exclude=downloads&exclude=payment_date&exclude=payment_provider&exclude=fees&exclude=positions.downloads&exclude=payments&exclude=refunds&pdf_data=true", factory.lastRequestUrl)
+
+        // Only the first chunk has been stored, so the download continues after its last order
+        assertEquals(50L, db.orderQueries.count().executeAsOne())
+        assertEquals(50L, db.orderPositionQueries.count().executeAsOne())
+        val rlm = db.resourceSyncStatusQueries.selectByResource("orders_withpdfdata").executeAsList().first()
+        assertEquals(rlm.last_modified, "timestamp1")
+        assertEquals(rlm.status, "incomplete:2019-02-01T00:49:00Z")
+
+        val remaining = (49 until 60).joinToString(",") { streamedOrder(it).toString() }
+        factory.respond(200, "{\"count\": 11, \"next\": null, \"results\": [$remaining]}", "timestamp2")
+
+        streamingOsa.download()
+        assertEquals("http://1.1.1.1/api/v1/organizers/demo/events/demo/orders/?testmode=false&exclude=downloads&exclude=payment_date&exclude=payment_provider&exclude=fees&exclude=positions.downloads&exclude=payments&exclude=refunds&pdf_data=true&ordering=datetime&created_since=2019-02-01T00%3A49%3A00Z", factory.lastRequestUrl)
+        assertEquals(60L, db.orderQueries.count().executeAsOne())
+        assertEquals(60L, db.orderPositionQueries.count().executeAsOne())
+        val position = db.orderPositionQueries.selectByServerId(100059).executeAsOne()
+        assertEquals("23.00", JSONObject(position.json_data).getString("price"))
+
+        val rlm2 = db.resourceSyncStatusQueries.selectByResource("orders_withpdfdata").executeAsList().first()
+        assertEquals(rlm2.last_modified, "timestamp1")
+        assertEquals(rlm2.status, "complete")
+    }
 }
@@ -58,6 +58,23 @@ class JsonLogicTests {
         }
     }
 
+    @Test
+    fun officialTestsCompiled() {
+        val tests = ObjectMapper().readValue(readResource("jsonlogic/tests.json"), List::class.java)
+        val l = JsonLogic()
+        for (t in tests) {
+            if (t !is List<*>) {
+                continue
+            }
+            val logic = ObjectMapper().writeValueAsString(t[0])
+            val data = ObjectMapper().writeValueAsString(t[1])
+            val compiled = l.compile(logic)
+            // Compiled logic must be reusable and behave exactly like interpreted logic
+            assertEquals(l.apply(logic, data), compiled.apply(data.parse))
+            assertEquals(l.apply(logic, data), compiled.apply(data.parse))
+        }
+    }
+
     @Test
     fun simple() {
         val jsonLogic = JsonLogic()
@@ -0,0 +1,47 @@
+package eu.pretix.pretixscan.scanproxy.tests.test
+
+import eu.pretix.libpretixsync.api.HttpClientFactory
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.toResponseBody
+
+/**
+ * Builds clients that answer requests with [responses] instead of asking a server, so the actual
+ * request and response handling of PretixApi can be tested, unlike with [FakePretixApi].
+ *
+ * The clients reference the factory, so HttpClientRegistry keeps them until it is shut down. Tests
+ * using this need to call HttpClientRegistry.shutdown() when they are done.
+ */
+class FakeHttpClientFactory : HttpClientFactory {
+    val responses: MutableList<((Request) -> Response)> = ArrayList()
+    var lastRequestUrl: String? = null
+    var builtClients = 0
+
+    override fun buildClient(ignore_ssl: Boolean): OkHttpClient {
+        builtClients++
+        return OkHttpClient.Builder()
+            .addInterceptor { chain ->
+                lastRequestUrl = chain.request().url.toString()
+                responses.removeAt(0)(chain.request())
+            }
+            .build()
+    }
+
+    fun respond(code: Int, body: String, generated: String? = null) {
+        responses.add { request ->
+            val builder = Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("Status $code")
+                .body(body.toResponseBody("application/json".toMediaType()))
+            if (generated != null) {
+                builder.addHeader("X-Page-Generated", generated)
+            }
+            builder.build()
+        }
+    }
+}
@@ -4,6 +4,7 @@ import eu.pretix.libpretixsync.api.DefaultHttpClientFactory
 import eu.pretix.libpretixsync.api.PretixApi
 import eu.pretix.libpretixsync.db.Answer
 import okhttp3.MediaType
+import okhttp3.Response
 import org.json.JSONException
 import org.json.JSONObject
 import java.io.File
@@ -129,6 +130,17 @@ class FakePretixApi(var orgaSlug: String = "demo") : PretixApi("http://1.1.1.1/"
         return fetchResponses.removeAt(0)()
     }
 
+    override fun fetchPage(full_url: String, if_modified_since: String?, onHeaders: ((Response) -> Unit)?, onResult: (JSONObject) -> Unit): PageInfo {
+        val resp = fetchResource(full_url, if_modified_since)
+        onHeaders?.invoke(resp.response)
+        val data = resp.data!!
+        val results = data.getJSONArray("results")
+        for (i in 0 until results.length()) {
+            onResult(results.getJSONObject(i))
+        }
+        return PageInfo(data.getInt("count"), if (data.isNull("next")) null else data.getString("next"), resp.response)
+    }
+
     override fun downloadFile(full_url: String): ApiResponse {
         lastRequestUrl = full_url
         lastRequestBody = null